@@ -1,6 +1,8 @@
 package backend;
 
 import backend.data.DataManager;
+import backend.data.Recover;
+import backend.data.pageCache.PageCache;
 import backend.tableAndFiled.TableManager;
 import backend.transaction.TransactionManager;
 import backend.utils.Panic;
@@ -29,37 +31,89 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("mmap", false, "-mmap");
+        options.addOption("extent", true, "-extent 4MB");
+        options.addOption("redo", true, "-redo 4");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("mmap"),
+                    parseExtent(cmd.getOptionValue("extent")), parseRedoThreads(cmd.getOptionValue("redo")));
             return;
         }
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parseExtent(cmd.getOptionValue("extent")));
             return;
         }
-        System.out.println("Usage: launcher (open|create) DBPath");
+        System.out.println("Usage: launcher (open|create) DBPath [-mem 64MB] [-mmap] [-extent 4MB] [-redo 4]");
     }
 
-    private static void createDB(String path) {
+    private static void createDB(String path, long extent) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm, extent);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, boolean mmap, long extent, int redoThreads) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, mmap, extent, redoThreads);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port, tbm).start();
     }
 
+    /**
+     * 解析 .db 文件预分配区段的大小，至少为一页
+     */
+    private static long parseExtent(String extentStr) {
+        if(extentStr == null || "".equals(extentStr)) {
+            return PageCache.DEFAULT_EXTENT_SIZE;
+        }
+        if(extentStr.length() < 2) {
+            Panic.panic(Error.InvalidExtentException);
+        }
+        String unit = extentStr.substring(extentStr.length()-2);
+        long extentNum = Long.parseLong(extentStr.substring(0, extentStr.length()-2));
+        long extent = 0;
+        switch(unit) {
+            case "KB":
+                extent = extentNum*KB;
+                break;
+            case "MB":
+                extent = extentNum*MB;
+                break;
+            default:
+                Panic.panic(Error.InvalidExtentException);
+        }
+        if(extent < PageCache.PAGE_SIZE) {
+            Panic.panic(Error.InvalidExtentException);
+        }
+        return extent;
+    }
+
+    /**
+     * 解析崩溃恢复时的重做线程数，默认为处理器个数
+     */
+    private static int parseRedoThreads(String threadsStr) {
+        if(threadsStr == null || "".equals(threadsStr)) {
+            return Recover.DEFAULT_REDO_THREADS;
+        }
+        int threads = 0;
+        try {
+            threads = Integer.parseInt(threadsStr);
+        } catch(NumberFormatException e) {
+            Panic.panic(Error.InvalidRedoThreadsException);
+        }
+        if(threads < 1) {
+            Panic.panic(Error.InvalidRedoThreadsException);
+        }
+        return threads;
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
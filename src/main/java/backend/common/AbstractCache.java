@@ -1,51 +1,86 @@
 package backend.common;
 
+import backend.common.primitive.LongIntHashMap;
+import backend.common.primitive.LongObjectHashMap;
 import common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * @author Joe
  * @ClassName AbstractCache.java
  * @Description 缓存框架
+ * 缓存按 key 的哈希被划分为多个分段（Segment），每个分段有自己的锁和数据结构，
+ * 不同分段上的 get/release 互不阻塞，只有同一分段上的操作才会相互竞争。
+ * 缓存容量（maxResource）是所有分段共享的，由一个原子计数器统一控制。
  * @createTime 2022年07月28日 21:37:00
  */
 public abstract class AbstractCache<T> {
-
     /**
-     * 实际缓存的数据
+     * 分段数的上限
      */
-    private HashMap<Long, T> cache;
+    private static final int MAX_SEGMENTS = 16;
     /**
-     * 元素的引用个数
+     * 有容量限制时，每个分段平均至少能分到的资源数，容量很小的缓存不值得分段
      */
-    private HashMap<Long, Integer> references;
+    private static final int MIN_SEGMENT_RESOURCE = 64;
     /**
-     * 为了应对多线程场景，还需要记录哪些资源正在从数据源获取中（从数据源获取资源是一个相对费时的操作）
+     * CLOCK 槽位的初始大小，不够时按倍数扩展
      */
-    private HashMap<Long, Boolean> getting;
+    private static final int INIT_SLOTS = 16;
+
+    private Segment[] segments;
+    private int segmentMask;
     /**
      * 缓存的最大缓存资源数
      */
     private int maxResource;
     /**
-     * 缓存中元素的个数
+     * 缓存中元素的个数（包括正在从数据源获取的），所有分段共享
      */
-    private int count = 0;
+    private AtomicInteger count;
+
     /**
-     * 对数据源操作都要加锁
+     * 引用计数归零后是否继续驻留在缓存中（缓冲池模式）
+     * 为 false 时，资源在最后一个引用释放时立即被驱逐；为 true 时，资源只有在缓存满、需要腾出位置时才会按 CLOCK 算法被驱逐
      */
-    private Lock lock;
+    private boolean retainUnpinned;
 
     public AbstractCache(int maxResource) {
+        this(maxResource, false);
+    }
+
+    /**
+     * @param maxResource 缓存的最大缓存资源数，0 表示不限制
+     * @param retainUnpinned 是否在引用释放后保留资源，仅在 maxResource 大于 0 时生效
+     */
+    @SuppressWarnings("unchecked")
+    public AbstractCache(int maxResource, boolean retainUnpinned) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.retainUnpinned = retainUnpinned && maxResource > 0;
+        this.count = new AtomicInteger(0);
+
+        int segmentCount = 1;
+        while(segmentCount < MAX_SEGMENTS
+                && (maxResource == 0 || maxResource / (segmentCount * 2) >= MIN_SEGMENT_RESOURCE)) {
+            segmentCount <<= 1;
+        }
+        // 内部类带有外部类的类型参数，不能直接创建泛型数组
+        @SuppressWarnings("rawtypes")
+        Segment[] created = new AbstractCache.Segment[segmentCount];
+        segments = created;
+        for(int i = 0; i < segmentCount; i ++) {
+            segments[i] = new Segment();
+        }
+        segmentMask = segmentCount - 1;
     }
 
     /**
@@ -56,40 +91,58 @@ public abstract class AbstractCache<T> {
      */
     @SuppressWarnings("AlibabaLockShouldWithTryFinally")
     protected T get(long key) throws Exception {
+        Segment seg = segmentFor(key);
         // 1. 尝试从缓存里获取
         while(true) {
-            lock.lock();
+            seg.lock.lock();
 
-            // 请求的资源正在被其他线程获取：隔一段时间查看一次，看看是否还被占用
-            if(getting.containsKey(key)) {
-                lock.unlock();
+            // 请求的资源正在被其他线程获取：在该资源的门闩上等待，获取完成（无论成功与否）时会被立即唤醒
+            CountDownLatch loading = seg.getting.get(key);
+            if(loading != null) {
+                seg.lock.unlock();
                 try {
-                    Thread.sleep(1);
+                    loading.await();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
-                    continue;
                 }
                 continue;
             }
 
             // 资源在缓存中，直接返回
-            if(cache.containsKey(key)) {
-                T obj = cache.get(key);
+            T cached = seg.cache.get(key);
+            if(cached != null) {
                 // 被引用数+1
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+                seg.references.put(key, seg.references.get(key, 0) + 1);
+                if(retainUnpinned) {
+                    seg.slotReferenced[seg.slots.get(key, -1)] = true;
+                }
+                seg.lock.unlock();
+                return cached;
             }
 
-            // 尝试获取该资源
-            if(maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
+            // 尝试获取该资源：缓存已满时，缓冲池模式下先尝试在本分段驱逐一个未被引用的资源
+            if(!tryReserve()) {
+                if(!retainUnpinned) {
+                    seg.lock.unlock();
+                    throw Error.CacheFullException;
+                }
+                if(!seg.evictOne()) {
+                    // 本分段的资源都被引用了，到其他分段去驱逐。先放开本分段的锁，避免分段之间相互等待
+                    seg.lock.unlock();
+                    if(!evictFromOtherSegments(seg)) {
+                        throw Error.CacheFullException;
+                    }
+                    continue;
+                }
+                if(!tryReserve()) {
+                    // 腾出的位置被其他分段的线程抢走了，重新来过
+                    seg.lock.unlock();
+                    continue;
+                }
             }
             //如果缓存没满的话，就在 getting 中注册一下，该线程准备从数据源获取资源了
-            count ++;
-            getting.put(key, true);
-            lock.unlock();
+            seg.getting.put(key, new CountDownLatch(1));
+            seg.lock.unlock();
             break;
         }
 
@@ -98,18 +151,22 @@ public abstract class AbstractCache<T> {
         try {
             obj = getForCache(key);
         } catch(Exception e) {
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
+            seg.lock.lock();
+            count.decrementAndGet();
+            // 唤醒等待者，由它们重新尝试获取
+            seg.getting.remove(key).countDown();
+            seg.lock.unlock();
             throw e;
         }
         // 成功从数据源获取数据
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+        seg.lock.lock();
+        seg.cache.put(key, obj);
+        seg.references.put(key, 1);
+        if(retainUnpinned) {
+            seg.occupySlot(key);
+        }
+        seg.getting.remove(key).countDown();
+        seg.lock.unlock();
 
         return obj;
     }
@@ -118,21 +175,23 @@ public abstract class AbstractCache<T> {
      * 释放一个引用
      */
     protected void release(long key) {
-        lock.lock();
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
         try {
-            int ref = references.get(key)-1;
-            // 当没有引用指向该缓存，删除掉缓存相关的结构
-            if(ref == 0) {
-                T obj = cache.get(key);
+            int ref = seg.references.get(key, 0)-1;
+            if(ref == 0 && !retainUnpinned) {
+                // 当没有引用指向该缓存，删除掉缓存相关的结构
+                T obj = seg.cache.get(key);
                 releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count --;
+                seg.references.remove(key);
+                seg.cache.remove(key);
+                count.decrementAndGet();
             } else {
-                references.put(key, ref);
+                // 缓冲池模式下引用归零的资源继续驻留，等待被 CLOCK 驱逐
+                seg.references.put(key, ref);
             }
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
         }
     }
 
@@ -140,20 +199,263 @@ public abstract class AbstractCache<T> {
      * 安全关闭：关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
+        for(Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                for (long key : seg.cache.keys()) {
+                    T obj = seg.cache.get(key);
+                    releaseForCache(obj);
+                    seg.references.remove(key);
+                    seg.cache.remove(key);
+                    if(retainUnpinned) {
+                        seg.freeSlot(key);
+                    }
+                    count.decrementAndGet();
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 资源当前的引用数，不在缓存中时为 0
+     */
+    protected int references(long key) {
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+            return seg.references.get(key, 0);
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 在持有分段锁的情况下，对每个驻留且未被引用的资源调用 pin，
+     * pin 返回 true 的资源会被加上一个引用后返回，调用方处理完之后需要逐个 release
+     * 资源未被引用时没有线程能修改它，pin 中可以对它做一致的快照，比如后台写回脏页
+     * 这个引用不算作一次访问，不影响 CLOCK 的访问位
+     */
+    protected List<T> pinUnreferenced(Predicate<T> pin) {
+        List<T> pinned = new ArrayList<>();
+        for(Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                for(long key : seg.cache.keys()) {
+                    if(seg.references.get(key, 0) > 0) {
+                        continue;
+                    }
+                    T obj = seg.cache.get(key);
+                    if(pin.test(obj)) {
+                        seg.references.put(key, 1);
+                        pinned.add(obj);
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
             }
+        }
+        return pinned;
+    }
+
+    /**
+     * 在持有分段锁的情况下，对缓存中的每个资源（不论是否被引用）调用 action，不改变引用计数
+     * action 只能读取资源的状态，不能再访问缓存
+     */
+    protected void forEachCached(Consumer<T> action) {
+        for(Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                for(long key : seg.cache.keys()) {
+                    action.accept(seg.cache.get(key));
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 根据 key 选择分段：先打散 key 的比特，避免连续的页号、UID 集中在少数分段
+     */
+    private Segment segmentFor(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return segments[(int)(h >>> 32) & segmentMask];
+    }
+
+    /**
+     * 在容量允许的情况下占用一个位置
+     * @return 缓存已满时返回 false
+     */
+    private boolean tryReserve() {
+        while(true) {
+            int c = count.get();
+            if(maxResource > 0 && c >= maxResource) {
+                return false;
+            }
+            if(count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 依次在其他分段中尝试驱逐一个资源，调用方不能持有任何分段的锁
+     * @return 所有资源都被引用、无法驱逐时返回 false
+     */
+    private boolean evictFromOtherSegments(Segment self) {
+        for(Segment seg : segments) {
+            if(seg == self) {
+                continue;
+            }
+            seg.lock.lock();
+            try {
+                if(seg.evictOne()) {
+                    return true;
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        // 在扫描其他分段期间，可能已有资源被释放，最后再检查一次本分段
+        self.lock.lock();
+        try {
+            return self.evictOne();
         } finally {
-            lock.unlock();
+            self.lock.unlock();
         }
     }
 
+    /**
+     * 缓存的一个分段，所有字段都由分段自己的 lock 保护
+     */
+    private class Segment {
+        /**
+         * 实际缓存的数据
+         */
+        LongObjectHashMap<T> cache = new LongObjectHashMap<>();
+        /**
+         * 元素的引用个数
+         */
+        LongIntHashMap references = new LongIntHashMap();
+        /**
+         * 为了应对多线程场景，还需要记录哪些资源正在从数据源获取中（从数据源获取资源是一个相对费时的操作）
+         * 每个正在获取的资源对应一个门闩，想要同一资源的其他线程在门闩上等待，而不是轮询
+         */
+        LongObjectHashMap<CountDownLatch> getting = new LongObjectHashMap<>();
+        /**
+         * 对数据源操作都要加锁
+         */
+        Lock lock = new ReentrantLock();
+
+        /**
+         * CLOCK 算法的环形槽位：每个驻留的资源占用一个槽位，只在缓冲池模式下使用
+         */
+        long[] slotKeys;
+        boolean[] slotUsed;
+        /**
+         * 访问位：资源被访问时置位，时钟指针扫过时清零，再次扫到仍未被访问的未引用资源会被驱逐
+         */
+        boolean[] slotReferenced;
+        /**
+         * 空闲槽位栈
+         */
+        int[] freeSlots;
+        int freeTop;
+        /**
+         * 资源所在的槽位
+         */
+        LongIntHashMap slots;
+        /**
+         * 时钟指针
+         */
+        int hand = 0;
+
+        Segment() {
+            if(retainUnpinned) {
+                slotKeys = new long[0];
+                slotUsed = new boolean[0];
+                slotReferenced = new boolean[0];
+                freeSlots = new int[0];
+                slots = new LongIntHashMap();
+                growSlots(INIT_SLOTS);
+            }
+        }
+
+        /**
+         * 扩展槽位数组，新的槽位都压入空闲栈
+         */
+        private void growSlots(int size) {
+            int old = slotKeys.length;
+            slotKeys = Arrays.copyOf(slotKeys, size);
+            slotUsed = Arrays.copyOf(slotUsed, size);
+            slotReferenced = Arrays.copyOf(slotReferenced, size);
+            freeSlots = Arrays.copyOf(freeSlots, size);
+            for(int i = size - 1; i >= old; i --) {
+                freeSlots[freeTop ++] = i;
+            }
+        }
+
+        /**
+         * 为新载入的资源分配一个空闲槽位，调用方需持有 lock
+         */
+        void occupySlot(long key) {
+            if(freeTop == 0) {
+                growSlots(slotKeys.length * 2);
+            }
+            int slot = freeSlots[-- freeTop];
+            slotUsed[slot] = true;
+            slotKeys[slot] = key;
+            slotReferenced[slot] = true;
+            slots.put(key, slot);
+        }
+
+        void freeSlot(long key) {
+            int slot = slots.get(key, -1);
+            if(slot >= 0) {
+                slots.remove(key);
+                slotUsed[slot] = false;
+                slotReferenced[slot] = false;
+                freeSlots[freeTop ++] = slot;
+            }
+        }
+
+        /**
+         * CLOCK 驱逐：指针循环扫描槽位，跳过仍被引用的资源，访问位为 1 的清零后给第二次机会，
+         * 遇到访问位为 0 且引用计数为 0 的资源则将其写回并驱逐。调用方需持有 lock
+         * @return 本分段所有资源都被引用、无法驱逐时返回 false
+         */
+        boolean evictOne() {
+            if(!retainUnpinned || slots.isEmpty()) {
+                return false;
+            }
+            int size = slotKeys.length;
+            // 最多扫描两圈：第一圈清零访问位，第二圈一定能找到未被引用的资源（如果存在的话）
+            for(int i = 0; i < 2 * size; i ++) {
+                int slot = hand;
+                hand = (hand + 1) % size;
+                if(!slotUsed[slot]) {
+                    continue;
+                }
+                long key = slotKeys[slot];
+                if(references.get(key, 0) > 0) {
+                    continue;
+                }
+                if(slotReferenced[slot]) {
+                    slotReferenced[slot] = false;
+                    continue;
+                }
+                T obj = cache.remove(key);
+                references.remove(key);
+                freeSlot(key);
+                count.decrementAndGet();
+                releaseForCache(obj);
+                return true;
+            }
+            return false;
+        }
+    }
 
     /**
      * 当资源不在缓存时的获取行为
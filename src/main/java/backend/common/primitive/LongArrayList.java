@@ -0,0 +1,106 @@
+package backend.common.primitive;
+
+import java.util.Arrays;
+
+/**
+ * long 列表，替代 List<Long>，元素直接存放在 long[] 中
+ * 非线程安全，由调用方加锁
+ */
+public class LongArrayList {
+    private long[] elements;
+    private int size;
+
+    public LongArrayList() {
+        this(4);
+    }
+
+    public LongArrayList(int capacity) {
+        elements = new long[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long get(int index) {
+        checkIndex(index);
+        return elements[index];
+    }
+
+    public void add(long e) {
+        ensureCapacity(size + 1);
+        elements[size ++] = e;
+    }
+
+    public void add(int index, long e) {
+        if(index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        ensureCapacity(size + 1);
+        System.arraycopy(elements, index, elements, index + 1, size - index);
+        elements[index] = e;
+        size ++;
+    }
+
+    /**
+     * 删除 index 处的元素
+     * @return 被删除的元素
+     */
+    public long removeAt(int index) {
+        checkIndex(index);
+        long e = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+        size --;
+        return e;
+    }
+
+    /**
+     * 删除第一个值为 e 的元素
+     * @return 是否删除了元素
+     */
+    public boolean removeValue(long e) {
+        int index = indexOf(e);
+        if(index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    public int indexOf(long e) {
+        for(int i = 0; i < size; i ++) {
+            if(elements[i] == e) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(long e) {
+        return indexOf(e) >= 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(elements, size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > elements.length) {
+            elements = Arrays.copyOf(elements, Math.max(capacity, elements.length << 1));
+        }
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package backend.common.primitive;
+
+import java.util.Arrays;
+
+/**
+ * long 集合，替代 HashSet<Long> 或 HashMap<Long, Boolean>，不对元素装箱
+ * 非线程安全，由调用方加锁
+ */
+public class LongHashSet {
+    private long[] keys;
+    private int mask;
+    private int size;
+
+    private boolean hasZeroKey;
+
+    public LongHashSet() {
+        this(LongHashing.MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expected) {
+        int capacity = LongHashing.capacityFor(expected);
+        keys = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long key) {
+        if(key == 0) {
+            return hasZeroKey;
+        }
+        int slot = LongHashing.mix(key) & mask;
+        while(keys[slot] != 0) {
+            if(keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return 元素原本不存在、被加入时返回 true
+     */
+    public boolean add(long key) {
+        if(key == 0) {
+            if(hasZeroKey) {
+                return false;
+            }
+            hasZeroKey = true;
+            size ++;
+            return true;
+        }
+        int slot = LongHashing.mix(key) & mask;
+        while(keys[slot] != 0) {
+            if(keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        size ++;
+        if(size > keys.length * LongHashing.LOAD_FACTOR) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return 是否删除了元素
+     */
+    public boolean remove(long key) {
+        if(key == 0) {
+            if(!hasZeroKey) {
+                return false;
+            }
+            hasZeroKey = false;
+            size --;
+            return true;
+        }
+        int slot = LongHashing.mix(key) & mask;
+        while(keys[slot] != key) {
+            if(keys[slot] == 0) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        size --;
+        int last = slot;
+        int cur = (slot + 1) & mask;
+        while(keys[cur] != 0) {
+            if(LongHashing.shouldShift(LongHashing.mix(keys[cur]) & mask, last, cur)) {
+                keys[last] = keys[cur];
+                last = cur;
+            }
+            cur = (cur + 1) & mask;
+        }
+        keys[last] = 0;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZeroKey = false;
+        size = 0;
+    }
+
+    /**
+     * @return 所有元素的拷贝
+     */
+    public long[] toArray() {
+        long[] res = new long[size];
+        int i = 0;
+        if(hasZeroKey) {
+            res[i ++] = 0;
+        }
+        for(long key : keys) {
+            if(key != 0) {
+                res[i ++] = key;
+            }
+        }
+        return res;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        keys = new long[capacity];
+        mask = capacity - 1;
+        for(long key : oldKeys) {
+            if(key == 0) {
+                continue;
+            }
+            int slot = LongHashing.mix(key) & mask;
+            while(keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package backend.common.primitive;
+
+/**
+ * 基本类型集合共用的哈希工具
+ *
+ * 所有的 long 为键的集合都采用开放寻址（线性探测）实现，键直接存放在 long[] 中，不做装箱。
+ * 0 被用作空槽位的标记，键为 0 的元素单独存放。
+ */
+final class LongHashing {
+    /**
+     * 负载因子，超过后扩容为两倍
+     */
+    static final float LOAD_FACTOR = 0.6f;
+    static final int MIN_CAPACITY = 8;
+
+    private LongHashing() {}
+
+    /**
+     * 打散 key 的比特，连续的页号、UID、XID 也能均匀分布
+     */
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    /**
+     * 能在负载因子内容纳 expected 个元素的最小的 2 的幂
+     */
+    static int capacityFor(int expected) {
+        int capacity = MIN_CAPACITY;
+        while(capacity * LOAD_FACTOR < expected) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * 删除时的后移判断：位于 cur 的元素理想槽位为 ideal，如果 ideal 不在 (last, cur] 这个环形区间内，
+     * 说明它是因为冲突越过了 last 才放到 cur 的，需要前移到 last 填补空位
+     */
+    static boolean shouldShift(int ideal, int last, int cur) {
+        if(last <= cur) {
+            return ideal <= last || ideal > cur;
+        } else {
+            return ideal <= last && ideal > cur;
+        }
+    }
+}
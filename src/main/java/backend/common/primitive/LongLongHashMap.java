@@ -0,0 +1,164 @@
+package backend.common.primitive;
+
+import java.util.Arrays;
+
+/**
+ * long -> long 的哈希表，替代 HashMap<Long, Long>，不对键和值装箱
+ * 非线程安全，由调用方加锁
+ */
+public class LongLongHashMap {
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    public LongLongHashMap() {
+        this(LongHashing.MIN_CAPACITY);
+    }
+
+    public LongLongHashMap(int expected) {
+        int capacity = LongHashing.capacityFor(expected);
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if(key == 0) {
+            return hasZeroKey;
+        }
+        return slotOf(key) >= 0;
+    }
+
+    /**
+     * @return key 对应的值，不存在时返回 missing
+     */
+    public long get(long key, long missing) {
+        if(key == 0) {
+            return hasZeroKey ? zeroValue : missing;
+        }
+        int slot = slotOf(key);
+        return slot >= 0 ? values[slot] : missing;
+    }
+
+    public void put(long key, long value) {
+        if(key == 0) {
+            if(!hasZeroKey) {
+                hasZeroKey = true;
+                size ++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int slot = LongHashing.mix(key) & mask;
+        while(keys[slot] != 0) {
+            if(keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size ++;
+        if(size > keys.length * LongHashing.LOAD_FACTOR) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * @return 是否删除了元素
+     */
+    public boolean remove(long key) {
+        if(key == 0) {
+            if(!hasZeroKey) {
+                return false;
+            }
+            hasZeroKey = false;
+            size --;
+            return true;
+        }
+        int slot = slotOf(key);
+        if(slot < 0) {
+            return false;
+        }
+        size --;
+        int last = slot;
+        int cur = (slot + 1) & mask;
+        while(keys[cur] != 0) {
+            if(LongHashing.shouldShift(LongHashing.mix(keys[cur]) & mask, last, cur)) {
+                keys[last] = keys[cur];
+                values[last] = values[cur];
+                last = cur;
+            }
+            cur = (cur + 1) & mask;
+        }
+        keys[last] = 0;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZeroKey = false;
+        size = 0;
+    }
+
+    /**
+     * @return 所有键的拷贝
+     */
+    public long[] keys() {
+        long[] res = new long[size];
+        int i = 0;
+        if(hasZeroKey) {
+            res[i ++] = 0;
+        }
+        for(long key : keys) {
+            if(key != 0) {
+                res[i ++] = key;
+            }
+        }
+        return res;
+    }
+
+    private int slotOf(long key) {
+        int slot = LongHashing.mix(key) & mask;
+        while(keys[slot] != 0) {
+            if(keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        for(int i = 0; i < oldKeys.length; i ++) {
+            long key = oldKeys[i];
+            if(key == 0) {
+                continue;
+            }
+            int slot = LongHashing.mix(key) & mask;
+            while(keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+        }
+    }
+}
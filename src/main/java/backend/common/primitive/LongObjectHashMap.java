@@ -0,0 +1,191 @@
+package backend.common.primitive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * long -> 对象 的哈希表，替代 HashMap<Long, V>，不对键装箱
+ * 非线程安全，由调用方加锁
+ */
+public class LongObjectHashMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    private boolean hasZeroKey;
+    private V zeroValue;
+
+    public LongObjectHashMap() {
+        this(LongHashing.MIN_CAPACITY);
+    }
+
+    public LongObjectHashMap(int expected) {
+        int capacity = LongHashing.capacityFor(expected);
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if(key == 0) {
+            return hasZeroKey;
+        }
+        return slotOf(key) >= 0;
+    }
+
+    /**
+     * @return key 对应的值，不存在时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if(key == 0) {
+            return hasZeroKey ? zeroValue : null;
+        }
+        int slot = slotOf(key);
+        return slot >= 0 ? (V)values[slot] : null;
+    }
+
+    public void put(long key, V value) {
+        if(key == 0) {
+            if(!hasZeroKey) {
+                hasZeroKey = true;
+                size ++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int slot = LongHashing.mix(key) & mask;
+        while(keys[slot] != 0) {
+            if(keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size ++;
+        if(size > keys.length * LongHashing.LOAD_FACTOR) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * @return 被删除的值，不存在时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if(key == 0) {
+            if(!hasZeroKey) {
+                return null;
+            }
+            V old = zeroValue;
+            hasZeroKey = false;
+            zeroValue = null;
+            size --;
+            return old;
+        }
+        int slot = slotOf(key);
+        if(slot < 0) {
+            return null;
+        }
+        V old = (V)values[slot];
+        size --;
+        int last = slot;
+        int cur = (slot + 1) & mask;
+        while(keys[cur] != 0) {
+            if(LongHashing.shouldShift(LongHashing.mix(keys[cur]) & mask, last, cur)) {
+                keys[last] = keys[cur];
+                values[last] = values[cur];
+                last = cur;
+            }
+            cur = (cur + 1) & mask;
+        }
+        keys[last] = 0;
+        values[last] = null;
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        hasZeroKey = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    /**
+     * @return 所有键的拷贝
+     */
+    public long[] keys() {
+        long[] res = new long[size];
+        int i = 0;
+        if(hasZeroKey) {
+            res[i ++] = 0;
+        }
+        for(long key : keys) {
+            if(key != 0) {
+                res[i ++] = key;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return 所有值的拷贝
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> res = new ArrayList<>(size);
+        if(hasZeroKey) {
+            res.add(zeroValue);
+        }
+        for(int i = 0; i < keys.length; i ++) {
+            if(keys[i] != 0) {
+                res.add((V)values[i]);
+            }
+        }
+        return res;
+    }
+
+    private int slotOf(long key) {
+        int slot = LongHashing.mix(key) & mask;
+        while(keys[slot] != 0) {
+            if(keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for(int i = 0; i < oldKeys.length; i ++) {
+            long key = oldKeys[i];
+            if(key == 0) {
+                continue;
+            }
+            int slot = LongHashing.mix(key) & mask;
+            while(keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+        }
+    }
+}
@@ -5,11 +5,26 @@ import backend.data.dataItem.DataItem;
 import backend.data.logger.Logger;
 import backend.data.page.PageOne;
 import backend.data.pageCache.PageCache;
+import backend.data.pageIndex.FreeSpaceMap;
 import backend.transaction.TransactionManager;
 
+import java.util.List;
+
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long[] insertBatch(long xid, List<byte[]> datas) throws Exception;
+    void free(long[] uids) throws Exception;
+
+    /**
+     * 预读提示：异步读入 uid 所在的页面以及之后的 pages-1 个页面
+     */
+    void prefetch(long uid, int pages);
+
+    /**
+     * 检查点：写回脏页，并删除崩溃恢复不再需要的日志，后台线程会定期调用
+     */
+    void checkpoint();
     void close();
 
     /**
@@ -20,12 +35,26 @@ public interface DataManager {
      * @return
      */
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, tm, PageCache.DEFAULT_EXTENT_SIZE);
+    }
+
+    /**
+     * 从空文件创建 DataManager
+     * @param path
+     * @param mem
+     * @param tm
+     * @param extentSize .db 文件每次预分配的大小
+     * @return
+     */
+    public static DataManager create(String path, long mem, TransactionManager tm, long extentSize) {
+        PageCache pc = PageCache.create(path, mem, extentSize);
         Logger lg = Logger.create(path);
+        FreeSpaceMap fsm = FreeSpaceMap.create(path);
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, fsm, tm);
         // 对第一页进行初始化
         dm.initPageOne();
+        dm.startCheckpointer();
         return dm;
     }
 
@@ -37,17 +66,71 @@ public interface DataManager {
      * @return
      */
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+        return open(path, mem, tm, false);
+    }
+
+    /**
+     * 从已有文件创建 DataManager
+     * @param path
+     * @param mem
+     * @param tm
+     * @param mmap 页面缓存是否以内存映射的方式读写 .db 文件
+     * @return
+     */
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap) {
+        return open(path, mem, tm, mmap, PageCache.DEFAULT_EXTENT_SIZE);
+    }
+
+    /**
+     * 从已有文件创建 DataManager
+     * @param path
+     * @param mem
+     * @param tm
+     * @param mmap 页面缓存是否以内存映射的方式读写 .db 文件
+     * @param extentSize .db 文件每次预分配的大小
+     * @return
+     */
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap, long extentSize) {
+        return open(path, mem, tm, mmap, extentSize, Recover.DEFAULT_REDO_THREADS);
+    }
+
+    /**
+     * 从已有文件创建 DataManager
+     * @param path
+     * @param mem
+     * @param tm
+     * @param mmap 页面缓存是否以内存映射的方式读写 .db 文件
+     * @param extentSize .db 文件每次预分配的大小
+     * @param redoThreads 崩溃恢复时重做日志使用的线程数
+     * @return
+     */
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap, long extentSize, int redoThreads) {
+        PageCache pc = PageCache.open(path, mem, mmap, extentSize);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        FreeSpaceMap fsm = FreeSpaceMap.open(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, fsm, tm);
         // 对第一页进行校验,来判断是否需要执行恢复流程,
         if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            // 恢复时按日志中出现过的最大页号截断，同时确定了逻辑页数
+            Recover.recover(tm, lg, pc, redoThreads);
+            // 空闲空间表已经过期，扫描所有页面重建
+            dm.fillPageIndex();
+        } else {
+            if(PageOne.getPageCount(dm.pageOne) > 0) {
+                // 正常关闭时记录了逻辑页数，预分配但未使用的部分不算作页面
+                pc.truncateByBgno(PageOne.getPageCount(dm.pageOne));
+            }
+            // 正常关闭时保存了空闲空间表，直接读入，不需要扫描页面
+            if(!dm.loadPageIndex()) {
+                dm.fillPageIndex();
+            }
         }
-        dm.fillPageIndex();
         // 重新对第一页生成随机字节
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        // 恢复的结果写回磁盘之后，之前的日志都不再需要
+        dm.checkpoint();
+        dm.startCheckpointer();
 
         return dm;
     }
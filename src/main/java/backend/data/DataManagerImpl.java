@@ -9,13 +9,27 @@ import backend.data.page.Page;
 import backend.data.page.PageOne;
 import backend.data.page.PageX;
 import backend.data.pageCache.PageCache;
+import backend.data.pageIndex.FreeSpaceMap;
 import backend.data.pageIndex.PageIndex;
 import backend.data.pageIndex.PageInfo;
 import backend.transaction.TransactionManager;
+import backend.transaction.TransactionManagerImpl;
 import backend.utils.Panic;
 import backend.utils.Types;
 import common.Error;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * DataManager 是 DM 层直接对外提供方法的类
  * 同时，也实现成 DataItem 对象的缓存
@@ -27,26 +41,61 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
+    FreeSpaceMap fsm;
     Page pageOne;
+    Lock allocLock;
+    /**
+     * 进行中的事务写下第一条日志之前的日志序号，检查点不能删除这之后的日志：崩溃后撤销这些事务还需要它们
+     * 只记录插入和更新日志，已经结束的事务在检查点时移除
+     */
+    Map<Long, Long> firstLsn;
+    Lock checkpointLock;
+    /**
+     * 定期做检查点的后台线程
+     */
+    ScheduledExecutorService checkpointer;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    public DataManagerImpl(PageCache pc, Logger logger, FreeSpaceMap fsm, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
+        this.fsm = fsm;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.allocLock = new ReentrantLock();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.checkpointLock = new ReentrantLock();
+        // 页面变脏时记录当前的日志序号
+        pc.setLsnSource(logger::end);
     }
 
+    /**
+     * 整理碎片的阈值：释放数据后页面中需要整理的空间达到这个值时立即整理
+     */
+    private static final int COMPACT_THRESHOLD = PageCache.PAGE_SIZE / 4;
+    /**
+     * 后台检查点的间隔，单位：ms，崩溃恢复需要重做的日志和磁盘上保留的日志都不超过大约这段时间内写下的量
+     */
+    private static final long CHECKPOINT_INTERVAL = 5000;
+
     /**
      * 向上层提供的功能：读
      * 根据 UID 从缓存中获取 DataItem，并校验有效位
      * @param uid
-     * @return
+     * @return UID 指向的数据已被释放或无效时返回 null
      * @throws Exception
      */
     @Override
     public DataItem read(long uid) throws Exception {
-        DataItemImpl di = (DataItemImpl)super.get(uid);
+        DataItemImpl di;
+        try {
+            di = (DataItemImpl)super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullDataItemException) {
+                return null;
+            }
+            throw e;
+        }
         if(!di.isValid()) {
             di.release();
             return null;
@@ -54,12 +103,16 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return di;
     }
 
+    @Override
+    public void prefetch(long uid, int pages) {
+        pc.prefetch(Types.uidToPgno(uid), pages);
+    }
+
     /**
      * 向上层提供的功能：插入
      *
-     * 在 pageIndex 中获取一个足以存储插入内容的页面的页号，
-     * 获取页面后，首先需要写入插入日志，接着才可以通过 pageX 插入数据，并返回插入位置的偏移。
-     * 最后需要将页面信息重新插入 pageIndex。
+     * 在 pageIndex 中获取一个足以存储插入内容的页面的页号，同时预留好所需的空间，
+     * 获取页面后，首先需要写入插入日志，接着才可以通过 pageX 插入数据，并返回由页号和槽字组成的 UID。
      * @param xid
      * @param data
      * @return
@@ -68,66 +121,364 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     @Override
     public long insert(long xid, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if(raw.length > PageX.MAX_FREE_SPACE) {
+        // 按需要一个新槽预留空间，复用空闲槽时再把槽的空间还回去
+        int spaceSize = raw.length + PageX.SLOT_SIZE;
+        if(spaceSize > PageX.MAX_FREE_SPACE) {
             throw Error.DataTooLargeException;
         }
 
-        // 寻找空位
-        PageInfo pi = null;
-        for(int i = 0; i < 5; i ++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+        // 寻找空位，预留所需的空间
+        PageInfo pi = pIndex.select(spaceSize);
+        if(pi == null) {
+            pi = allocatePage(spaceSize, false);
+        }
+
+        while(true) {
+            Page pg = null;
+            try {
+                pg = pc.getPage(pi.pgno);
+            } catch(Exception e) {
+                // 归还预留的空间
+                pIndex.add(pi.pgno, pi.freeSpace);
+                throw e;
             }
+            // 同一页可能有多个线程同时插入，页内的写入（分配槽和偏移、追加日志、写数据）需要在页面锁下进行
+            // 日志在页面锁下追加，保证日志顺序和页内的修改顺序一致；等待日志刷盘时已经释放了页面锁，
+            // 同一页上的其他插入可以进入同一批日志。刷盘之前一直持有页面，页面不会先于日志写回磁盘
+            long lsn = -1;
+            long uid = 0;
+            boolean reused = false;
+            pg.lock();
+            try {
+                if(prepareRoom(pg, raw.length)) {
+                    int slotWord = PageX.nextSlot(pg);
+                    short offset = PageX.getFSO(pg);
+                    // 插入日志
+                    byte[] log = Recover.insertLog(xid, pg, slotWord, offset, raw);
+                    beforeLog(xid, pg);
+                    lsn = logger.append(log);
+
+                    // 插入数据
+                    PageX.insert(pg, raw, slotWord, offset);
+                    uid = Types.addressToUid(pi.pgno, slotWord);
+                    reused = !PageX.isNewSlot(slotWord);
+                }
+            } finally {
+                pg.unlock();
+                if(lsn < 0) {
+                    pg.release();
+                }
+            }
+            if(lsn >= 0) {
+                if(reused) {
+                    pIndex.add(pi.pgno, PageX.SLOT_SIZE);
+                }
+                try {
+                    logger.flush(lsn);
+                } finally {
+                    pg.release();
+                }
+                return uid;
+            }
+            // 这一页的空闲空间分散在已删除的数据之间，而页面正在被其他线程使用、不能整理，归还预留的空间后换一个新页面
+            pIndex.add(pi.pgno, pi.freeSpace);
+            pi = allocatePage(spaceSize, true);
         }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
+    }
+
+    /**
+     * 向上层提供的功能：批量插入
+     *
+     * 按顺序把数据尽量紧密地放进页面：每次从 pageIndex 取出一个页面剩余的整段空间，在这一页上连续插入放得下的数据，
+     * 没用完的空间归还后再取下一页。插入日志在页面锁下追加到日志缓冲区，所有数据插入完成后只等待一次刷盘。
+     * 刷盘之前，插入过数据的页面一直被当前线程持有：页面不会先于日志被写回磁盘，也不会被整理碎片而移动数据。
+     * @param xid
+     * @param datas
+     * @return 与 datas 顺序对应的 UID
+     * @throws Exception
+     */
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> datas) throws Exception {
+        byte[][] raws = new byte[datas.size()][];
+        for(int i = 0; i < raws.length; i ++) {
+            raws[i] = DataItem.wrapDataItemRaw(datas.get(i));
+            if(raws[i].length + PageX.SLOT_SIZE > PageX.MAX_FREE_SPACE) {
+                throw Error.DataTooLargeException;
+            }
         }
 
-        Page pg = null;
-        int freeSpace = 0;
+        long[] uids = new long[raws.length];
+        long lsn = -1;
+        List<Page> pages = new ArrayList<>();
         try {
-            pg = pc.getPage(pi.pgno);
-            // 插入日志
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            int i = 0;
+            boolean fresh = false;
+            while(i < raws.length) {
+                PageInfo pi = allocatePage(raws[i].length + PageX.SLOT_SIZE, fresh, true);
+                Page pg = null;
+                try {
+                    pg = pc.getPage(pi.pgno);
+                } catch(Exception e) {
+                    pIndex.add(pi.pgno, pi.freeSpace);
+                    throw e;
+                }
+                pages.add(pg);
+                int used = 0;
+                pg.lock();
+                try {
+                    while(i < raws.length) {
+                        int spaceSize = raws[i].length + PageX.SLOT_SIZE;
+                        if(used + spaceSize > pi.freeSpace || !prepareRoom(pg, raws[i].length)) {
+                            break;
+                        }
+                        int slotWord = PageX.nextSlot(pg);
+                        short offset = PageX.getFSO(pg);
+                        beforeLog(xid, pg);
+                        lsn = logger.append(Recover.insertLog(xid, pg, slotWord, offset, raws[i]));
+                        PageX.insert(pg, raws[i], slotWord, offset);
+                        uids[i ++] = Types.addressToUid(pi.pgno, slotWord);
+                        used += PageX.isNewSlot(slotWord) ? spaceSize : spaceSize - PageX.SLOT_SIZE;
+                    }
+                } finally {
+                    pg.unlock();
+                }
+                if(pi.freeSpace > used) {
+                    pIndex.add(pi.pgno, pi.freeSpace - used);
+                }
+                // 一条也没有放下（空间分散而不能整理），下一条换新页面
+                fresh = used == 0;
+            }
+        } finally {
+            // 出错时已经写入页面的数据也有日志，要等它们刷盘后才能放开页面
+            if(lsn >= 0) {
+                logger.flush(lsn);
+            }
+            for(Page pg : pages) {
+                pg.release();
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 保证页面上有长度为 length 的连续空间，不够时尝试整理碎片，调用方持有页面锁
+     * @return 整理后仍然放不下，或者页面正在被其他线程使用而不能整理时返回 false
+     */
+    private boolean prepareRoom(Page pg, int length) {
+        if(PageX.hasRoom(pg, length)) {
+            return true;
+        }
+        if(!pc.isExclusive(pg)) {
+            return false;
+        }
+        compact(pg);
+        return PageX.hasRoom(pg, length);
+    }
 
-            // 插入数据
-            short offset = PageX.insert(pg, raw);
+    /**
+     * 写下修改 pg 的日志之前调用：先标记脏页，页面的 recLsn 不会晚于这条日志；
+     * 普通事务的第一条日志之前记录当前序号，检查点会保留它之后的日志直到事务结束
+     */
+    private void beforeLog(long xid, Page pg) {
+        pg.setDirty(true);
+        noteFirstLsn(xid);
+    }
 
-            pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+    private void noteFirstLsn(long xid) {
+        if(xid != TransactionManagerImpl.SUPER_XID && !firstLsn.containsKey(xid)) {
+            firstLsn.putIfAbsent(xid, logger.end());
+        }
+    }
+
+    /**
+     * 整理页面碎片并记录整页日志，调用方持有页面锁，并且确认了没有其他线程持有这一页
+     */
+    private void compact(Page pg) {
+        PageX.compact(pg);
+        logger.log(Recover.pageLog(pg));
+    }
+
+    /**
+     * 所有页面的空闲空间都不够时新建页面，并在新页面上预留 spaceSize 的空间
+     * 新建页面是串行的：并发的插入线程不会各自新建一页，后来的线程会直接使用刚刚新建的页面
+     * @param spaceSize
+     * @param fresh 是否必须使用新页面
+     * @return
+     */
+    private PageInfo allocatePage(int spaceSize, boolean fresh) {
+        return allocatePage(spaceSize, fresh, false);
+    }
 
+    /**
+     * @param spaceSize
+     * @param fresh 是否必须使用新页面
+     * @param whole 是否预留页面的整段空闲空间（批量插入），否则只预留 spaceSize
+     * @return
+     */
+    private PageInfo allocatePage(int spaceSize, boolean fresh, boolean whole) {
+        if(whole && !fresh) {
+            PageInfo pi = pIndex.take(spaceSize);
+            if(pi != null) {
+                return pi;
+            }
+        }
+        allocLock.lock();
+        try {
+            if(!fresh) {
+                PageInfo pi = whole ? pIndex.take(spaceSize) : pIndex.select(spaceSize);
+                if(pi != null) {
+                    return pi;
+                }
+            }
+            int newPgno = pc.newPage(PageX.initRaw());
+            if(whole) {
+                return new PageInfo(newPgno, PageX.MAX_FREE_SPACE);
+            }
+            pIndex.add(newPgno, PageX.MAX_FREE_SPACE - spaceSize);
+            return new PageInfo(newPgno, spaceSize);
         } finally {
-            // 将取出的pg重新插入pIndex
-            if(pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+            allocLock.unlock();
+        }
+    }
+
+    /**
+     * 向上层提供的功能：释放
+     * 释放不再被任何事务需要的数据（比如已提交删除的旧版本、已回滚事务插入的数据），它们的空间可以被之后的插入复用
+     * 按页分组，每页写一条释放日志；释放后碎片较多并且没有其他线程使用这一页时，立即整理碎片
+     * 之后再读取这些 UID 会得到 null
+     * @param uids
+     * @throws Exception
+     */
+    @Override
+    public void free(long[] uids) throws Exception {
+        long[] sorted = Arrays.copyOf(uids, uids.length);
+        // 页号在 UID 的高位，排序后同一页的 UID 相邻
+        Arrays.sort(sorted);
+        int i = 0;
+        while(i < sorted.length) {
+            int pgno = Types.uidToPgno(sorted[i]);
+            int j = i;
+            while(j < sorted.length && Types.uidToPgno(sorted[j]) == pgno) {
+                j ++;
+            }
+            int[] slotWords = new int[j - i];
+            for(int k = i; k < j; k ++) {
+                slotWords[k - i] = Types.uidToSlotWord(sorted[k]);
             }
+            freeInPage(pgno, slotWords);
+            i = j;
+        }
+    }
+
+    private void freeInPage(int pgno, int[] slotWords) throws Exception {
+        Page pg = pc.getPage(pgno);
+        int freed = 0;
+        try {
+            long lsn;
+            pg.lock();
+            try {
+                beforeLog(TransactionManagerImpl.SUPER_XID, pg);
+                lsn = logger.append(Recover.freeLog(pgno, slotWords));
+                for(int slotWord : slotWords) {
+                    freed += PageX.free(pg, slotWord);
+                }
+                if(PageX.getFragmentedSpace(pg) >= COMPACT_THRESHOLD && pc.isExclusive(pg)) {
+                    compact(pg);
+                }
+            } finally {
+                pg.unlock();
+            }
+            logger.flush(lsn);
+        } finally {
+            pg.release();
+        }
+        if(freed > 0) {
+            pIndex.add(pgno, freed);
         }
     }
 
     @Override
     public void close() {
+        if(checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         super.close();
-        logger.close();
+        // 此时没有进行中的插入，PageIndex 中是所有页面准确的空闲空间
+        fsm.save(pIndex, pc.getPageNumber());
+        fsm.close();
 
-        // 关闭 pageOne 需要设置校验
+        // 关闭 pageOne 需要设置校验，同时记录逻辑页数
+        int pageNumber = pc.getPageNumber();
+        PageOne.setPageCount(pageOne, pageNumber);
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
+
+        // 所有页面都已经落盘，之前的日志都不再需要，只保留正在追加的段
+        long end = logger.end();
+        logger.log(Recover.checkpointLog(end, end, pageNumber));
+        logger.removeBefore(end);
+        logger.close();
     }
 
     // 为xid生成update日志
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
+        // before() 已经标记了脏页
+        noteFirstLsn(xid);
         logger.log(log);
     }
 
+    /**
+     * 检查点：写回脏页之后记录一条检查点日志，并删除不再需要的旧日志
+     *
+     * 1. 记下当前日志的结尾 E，之后才变脏的页面的 recLsn 都不小于 E
+     * 2. 页面缓存写回未被引用的脏页，得到仍然是脏页的页面的最小 recLsn，崩溃后从 R = min(E, recLsn) 开始重做即可
+     * 3. 驱逐时写回的页面没有刷盘，在这里统一刷盘，R 之前的修改都已经落盘
+     * 4. 进行中的事务中最早的第一条日志 U，崩溃后撤销这些事务需要从 U 开始的日志
+     * 5. 记录检查点日志 [R] [U] [PageCount] 并刷盘，然后删除结束于 min(R, U) 之前的段
+     */
+    @Override
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            long end = logger.end();
+            long redo = Math.min(end, pc.checkpoint());
+            pc.force();
+            long undo = end;
+            Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+            while(it.hasNext()) {
+                Map.Entry<Long, Long> e = it.next();
+                if(!tm.isActive(e.getKey())) {
+                    it.remove();
+                } else {
+                    undo = Math.min(undo, e.getValue());
+                }
+            }
+            logger.log(Recover.checkpointLog(redo, undo, pc.getPageNumber()));
+            logger.removeBefore(Math.min(redo, undo));
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * 启动后台检查点线程，在初始化或恢复完成之后调用
+     */
+    void startCheckpointer() {
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "log-checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
     public void releaseDataItem(DataItem di) {
         super.release(di.getUid());
     }
@@ -140,11 +491,22 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int)(uid & ((1L << 32) - 1));
+        int pgno = Types.uidToPgno(uid);
+        int slotWord = Types.uidToSlotWord(uid);
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        // 通过槽找到数据的位置，整理碎片也在页面锁下进行，拿到偏移之后这一页被当前线程引用，数据不会再移动
+        short offset;
+        pg.lock();
+        try {
+            offset = PageX.getOffset(pg, slotWord);
+        } finally {
+            pg.unlock();
+        }
+        if(offset < 0) {
+            pg.release();
+            throw Error.NullDataItemException;
+        }
+        return DataItem.parseDataItem(pg, offset, uid, this);
     }
 
 
@@ -188,10 +550,20 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
 
     /**
-     * 初始化 pageIndex
+     * 从空闲空间表初始化 pageIndex，只能在上一次正常关闭时使用
+     * @return 空闲空间表无效时返回 false，需要扫描页面重建
+     */
+    boolean loadPageIndex() {
+        return fsm.load(pIndex, pc.getPageNumber());
+    }
+
+    /**
+     * 扫描所有页面初始化 pageIndex
      */
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
+        // 顺序扫描所有页面，提示页面缓存提前读入，之后的窗口由顺序访问检测接着预读
+        pc.prefetch(2, pageNumber - 1);
         for(int i = 2; i <= pageNumber; i ++) {
             Page pg = null;
             try {
@@ -1,17 +1,24 @@
 package backend.data;
 
 import backend.common.SubArray;
+import backend.common.primitive.LongArrayList;
+import backend.common.primitive.LongIntHashMap;
 import backend.data.dataItem.DataItem;
 import backend.data.logger.Logger;
 import backend.data.page.Page;
 import backend.data.page.PageX;
 import backend.data.pageCache.PageCache;
 import backend.transaction.TransactionManager;
+import backend.transaction.TransactionManagerImpl;
 import backend.utils.Panic;
 import backend.utils.Parser;
+import backend.utils.Types;
 import com.google.common.primitives.Bytes;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * @author Joe
@@ -22,17 +29,35 @@ import java.util.*;
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_FREE = 2;
+    private static final byte LOG_TYPE_PAGE = 3;
+    private static final byte LOG_TYPE_CHECKPOINT = 4;
+    private static final byte LOG_TYPE_DELTA = 5;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
     /**
-     * 插入操作日志格式：[LogType] [XID] [Pgno] [Offset] [Raw]
-     * 表示XID将Raw的内容插入到了Pgno页的Offset位移处
+     * 默认的重做线程数
+     */
+    public static final int DEFAULT_REDO_THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * 每个重做线程的队列长度，队列满时读日志的线程等待
+     */
+    private static final int REDO_QUEUE = 1024;
+    /**
+     * 放进队列表示重做结束
+     */
+    private static final byte[] REDO_END = new byte[0];
+
+    /**
+     * 插入操作日志格式：[LogType] [XID] [Pgno] [SlotWord] [Offset] [Raw]
+     * 表示XID将Raw的内容插入到了Pgno页的Offset位移处，并由SlotWord对应的槽指向它
      */
     static class InsertLogInfo {
         long xid;
         int pgno;
+        int slotWord;
         short offset;
         byte[] raw;
     }
@@ -44,169 +69,388 @@ public class Recover {
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
+        int slotWord;
         byte[] oldRaw;
         byte[] newRaw;
     }
 
+    /**
+     * 增量更新日志格式：[LogType] [XID] [UID] [Range1] [Range2] ...
+     * Range: [Offset 2] [Length 2] [Old] [New]，表示 DataItem 中从 Offset 开始的 Length 个字节从 Old 更新为 New
+     * 更新通常只修改 DataItem 中的几个字节（比如 B+ 树节点中的一个键，或者记录的 XMAX），只记录变化的区间
+     * XID 为 SUPER_XID 的更新（B+ 树节点）不会被撤销，区间中省略 Old
+     * 每个区间记录的都是修改后的完整字节而不是“移动”之类的操作，重做到已经包含这次修改的页面上结果不变
+     */
+    static class DeltaLogInfo {
+        long xid;
+        int pgno;
+        int slotWord;
+    }
+
+    /**
+     * 释放操作日志格式：[LogType] [XID] [Pgno] [SlotWord1] [SlotWord2] ...
+     * 表示释放了Pgno页上这些槽指向的数据，XID 总是 SUPER_XID
+     */
+    static class FreeLogInfo {
+        int pgno;
+        int[] slotWords;
+    }
+
+    /**
+     * 整页日志格式：[LogType] [XID] [Pgno] [Image]
+     * 整理碎片会移动页内的数据，之后的日志只有在整理后的页面上才能正确重做，
+     * 所以整理后记录整个页面，重做到这里时直接用它覆盖页面。XID 总是 SUPER_XID
+     */
+    static class PageLogInfo {
+        int pgno;
+        byte[] image;
+    }
+
+    /**
+     * 检查点日志格式：[LogType] [XID] [RedoLsn] [UndoLsn] [PageCount]
+     * RedoLsn 之前的日志对页面的修改都已经落盘；UndoLsn 之前没有进行中事务的插入、更新日志；
+     * PageCount 是检查点时的页数，之后没有日志涉及的新页面不会被截断。XID 总是 SUPER_XID
+     */
+    static class CheckpointLogInfo {
+        long redoLsn;
+        long undoLsn;
+        int pageCount;
+    }
+
+    /**
+     * 分析阶段的结果
+     */
+    static class Analysis {
+        /**
+         * 日志中涉及的最大页号（包括检查点记录的页数）
+         */
+        int maxPgno;
+        /**
+         * 最近一次检查点的 RedoLsn，没有检查点时为 0
+         */
+        long redoLsn;
+        /**
+         * 最后一条修改页面的日志的序号，不小于 redoLsn 时才需要重做
+         */
+        long lastLsn = -1;
+        /**
+         * 事务表：XID -> 是否是进行中的事务，每个事务只查询一次 TM
+         */
+        LongIntHashMap transactions = new LongIntHashMap();
+        /**
+         * 进行中事务的插入、更新日志的序号，按日志顺序排列，倒序遍历就是撤销的顺序
+         */
+        LongArrayList undo = new LongArrayList();
+    }
+
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, DEFAULT_REDO_THREADS);
+    }
+
     /**
      * 恢复策略
+     * 1. 分析：顺序读取一遍保留的日志，找到最近一次检查点，建立事务表，记下进行中事务的日志位置
+     * 2. 重做：从检查点的 RedoLsn 开始重做需要重做的页面
+     * 3. 撤销：按记下的位置倒序读取进行中事务的日志并撤销，不再重新扫描日志
      * @param tm
      * @param lg
      * @param pc
+     * @param redoThreads 重做使用的线程数，1 表示在当前线程中顺序重做
      */
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int redoThreads) {
         System.out.println("Recovering...");
 
+        Analysis an = analyze(tm, lg);
+        pc.truncateByBgno(an.maxPgno);
+        System.out.println("Truncate to " + an.maxPgno + " pages.");
+
+        redoTranscations(lg, pc, an, redoThreads);
+        System.out.println("Redo Transactions Over.");
+
+        undoTranscations(tm, lg, pc, an);
+        System.out.println("Undo Transactions Over.");
+
+        System.out.println("Recovery Over.");
+    }
+
+    /**
+     * 分析阶段：唯一一次完整地读取保留的日志
+     * @param tm
+     * @param lg
+     * @return
+     */
+    private static Analysis analyze(TransactionManager tm, Logger lg) {
+        Analysis an = new Analysis();
+        int pageCount = 0;
         lg.rewind();
-        int maxPgno = 0;
         while(true) {
+            long lsn = lg.position();
             byte[] log = lg.next();
             if(log == null) {
                 break;
             }
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+            if(log[OF_TYPE] == LOG_TYPE_CHECKPOINT) {
+                CheckpointLogInfo cp = parseCheckpointLog(log);
+                an.redoLsn = cp.redoLsn;
+                pageCount = Math.max(pageCount, cp.pageCount);
+                continue;
             }
-            if(pgno > maxPgno) {
-                maxPgno = pgno;
+            an.lastLsn = lsn;
+            an.maxPgno = Math.max(an.maxPgno, parsePgno(log));
+            if(!isInsertLog(log) && !isUpdateLog(log)) {
+                continue;
+            }
+            long xid = parseXid(log);
+            int active = an.transactions.get(xid, -1);
+            if(active < 0) {
+                active = tm.isActive(xid) ? 1 : 0;
+                an.transactions.put(xid, active);
+            }
+            if(active == 1) {
+                an.undo.add(lsn);
             }
         }
-        if(maxPgno == 0) {
-            maxPgno = 1;
-        }
-        pc.truncateByBgno(maxPgno);
-        System.out.println("Truncate to " + maxPgno + " pages.");
-
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
-        undoTranscations(tm, lg, pc);
-        System.out.println("Undo Transactions Over.");
-
-        System.out.println("Recovery Over.");
+        an.maxPgno = Math.max(Math.max(an.maxPgno, pageCount), 1);
+        System.out.println("Analysis: redo from " + an.redoLsn + ", " + an.undo.size() + " logs to undo.");
+        return an;
     }
 
     /**
-     * 重做已完成事务：commit、abort
+     * 重做 redoLsn 之后的所有日志，包括进行中的事务（之后再由 undo 撤销）
+     * 页面中的数据会因为整理碎片而移动，只有按日志顺序完整地重放一遍，
+     * 每条日志重做时页面（尤其是槽目录）才处于它被写入时的状态
+     * redoLsn 之前的修改已经在磁盘上，再重做反而可能覆盖页面中之后写入的数据
      *
-     * 1. 正序扫描事务 T 的所有日志
+     * 1. 从 redoLsn 开始正序扫描日志
      * 2. 如果日志是插入操作 (Ti, I, A, x)，就将 x 重新插入 A 位置
      * 3. 如果日志是更新操作 (Ti, U, A, oldx, newx)，就将 A 位置的值设置为 newx
-     * @param tm
+     * 4. 如果日志是释放操作或整页日志，重新释放对应的槽或者覆盖整个页面
+     *
+     * 每条日志只修改一个页面，不同页面的重做互不相关：多线程重做时，当前线程读取并分发日志，
+     * 按页号把日志交给固定的重做线程，同一页的日志仍然按日志顺序重做
      * @param lg
      * @param pc
+     * @param an
+     * @param threads
      */
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) {
-                break;
+    private static void redoTranscations(Logger lg, PageCache pc, Analysis an, int threads) {
+        // 最后一条日志在 RedoLsn 之前，所有的修改都已经落盘
+        if(an.lastLsn < an.redoLsn) {
+            return;
+        }
+        threads = Math.max(1, threads);
+        lg.seek(an.redoLsn);
+        if(threads == 1) {
+            while(true) {
+                byte[] log = lg.next();
+                if(log == null) {
+                    break;
+                }
+                doRedoLog(pc, log);
             }
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                // 重做非进行中的事务
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
+            return;
+        }
+
+        List<BlockingQueue<byte[]>> queues = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for(int i = 0; i < threads; i ++) {
+            BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(REDO_QUEUE);
+            Thread t = new Thread(() -> {
+                try {
+                    while(true) {
+                        byte[] log = queue.take();
+                        if(log == REDO_END) {
+                            break;
+                        }
+                        doRedoLog(pc, log);
+                    }
+                } catch(InterruptedException e) {
+                    Panic.panic(e);
                 }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
+            }, "redo-worker-" + i);
+            queues.add(queue);
+            workers.add(t);
+            t.start();
+        }
+        try {
+            while(true) {
+                byte[] log = lg.next();
+                if(log == null) {
+                    break;
                 }
+                if(log[OF_TYPE] == LOG_TYPE_CHECKPOINT) {
+                    continue;
+                }
+                queues.get(parsePgno(log) % threads).put(log);
+            }
+            for(BlockingQueue<byte[]> queue : queues) {
+                queue.put(REDO_END);
+            }
+            for(Thread t : workers) {
+                t.join();
             }
+        } catch(InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 重做一条日志
+     */
+    private static void doRedoLog(PageCache pc, byte[] log) {
+        switch(log[OF_TYPE]) {
+            case LOG_TYPE_INSERT:
+                doInsertLog(pc, log, REDO);
+                break;
+            case LOG_TYPE_UPDATE:
+            case LOG_TYPE_DELTA:
+                doUpdateLog(pc, log, REDO);
+                break;
+            case LOG_TYPE_FREE:
+                doFreeLog(pc, log);
+                break;
+            case LOG_TYPE_PAGE:
+                doPageLog(pc, log);
+                break;
+            default:
         }
     }
 
     /**
      * 撤销未完成的事务：active
      *
-     * 1. 倒序扫描事务 T 的所有日志
+     * 1. 按分析阶段记下的位置，倒序读取所有进行中事务的日志
      * 2. 如果日志是插入操作 (Ti, I, A, x)，就将 A 位置的数据删除
      * 3. 如果日志是更新操作 (Ti, U, A, oldx, newx)，就将 A 位置的值设置为 oldx
+     * 4. 将这些事务标记为回滚
      * @param tm
      * @param lg
      * @param pc
+     * @param an
      */
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        //key : xid value: log
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while(true) {
+    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc, Analysis an) {
+        for(int i = an.undo.size() - 1; i >= 0; i --) {
+            lg.seek(an.undo.get(i));
             byte[] log = lg.next();
-            if(log == null) {
-                break;
-            }
             if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+                doInsertLog(pc, log, UNDO);
             } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+                doUpdateLog(pc, log, UNDO);
             }
         }
-
-        // 对所有active log进行倒序undo
-        for(Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size()-1; i >= 0; i --) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
-            }
-            tm.abort(entry.getKey());
-        }
+        // 日志中正在进行的事务和没有留下日志的事务一起标记为回滚
+        tm.abortUnfinished();
     }
 
     private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+        return log[OF_TYPE] == LOG_TYPE_INSERT;
     }
 
-    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    /**
+     * 完整的更新日志和增量更新日志
+     */
+    private static boolean isUpdateLog(byte[] log) {
+        return log[OF_TYPE] == LOG_TYPE_UPDATE || log[OF_TYPE] == LOG_TYPE_DELTA;
+    }
+
+    // 所有日志都以 [LogType] [XID] 开头
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
+
+    private static long parseXid(byte[] log) {
+        return Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_XID+8));
+    }
+
+    /**
+     * 获取日志涉及的页号
+     */
+    private static int parsePgno(byte[] log) {
+        if(isUpdateLog(log)) {
+            return Types.uidToPgno(Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW)));
+        }
+        // 其余日志在 XID 之后都是 Pgno
+        return Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_PGNO+4));
+    }
+
+    private static Page getPage(PageCache pc, int pgno) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return pg;
+    }
+
+    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_UPDATE_UID = OF_XID+8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
 
+    // 增量更新日志中每个区间的 [Offset] [Length]
+    private static final int LEN_DELTA_RANGE_HEADER = 4;
     /**
-     * 生成更新日志
+     * 两个变化的区间之间相同的字节不超过这个数时合并成一个区间：多记录的新旧字节不比一个区间头长
+     */
+    private static final int DELTA_MERGE_GAP = LEN_DELTA_RANGE_HEADER / 2;
+
+    /**
+     * 生成更新日志：只记录变化的字节区间，区间太多、增量日志不比完整日志小时记录完整的新旧数据
      * @param xid
      * @param di
      * @return
      */
     public static byte[] updateLog(long xid, DataItem di) {
+        byte[] oldRaw = di.getOldRaw();
+        SubArray raw = di.getRaw();
+        List<int[]> ranges = diffRanges(oldRaw, raw.raw, raw.start);
+        boolean withOld = xid != TransactionManagerImpl.SUPER_XID;
+        int deltaSize = 0;
+        for(int[] range : ranges) {
+            deltaSize += LEN_DELTA_RANGE_HEADER + (withOld ? 2 : 1) * (range[1] - range[0]);
+        }
+        if(deltaSize < 2 * oldRaw.length) {
+            ByteBuffer buf = ByteBuffer.allocate(OF_UPDATE_RAW + deltaSize);
+            buf.put(LOG_TYPE_DELTA).putLong(xid).putLong(di.getUid());
+            for(int[] range : ranges) {
+                int length = range[1] - range[0];
+                buf.putShort((short)range[0]).putShort((short)length);
+                if(withOld) {
+                    buf.put(oldRaw, range[0], length);
+                }
+                buf.put(raw.raw, raw.start + range[0], length);
+            }
+            return buf.array();
+        }
         byte[] logType = {LOG_TYPE_UPDATE};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] uidRaw = Parser.long2Byte(di.getUid());
-        byte[] oldRaw = di.getOldRaw();
-        SubArray raw = di. getRaw();
         byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
         return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
     }
 
+    /**
+     * 比较 oldRaw 和 newRaw[start, start+oldRaw.length)，找出变化的字节区间 [from, to)
+     */
+    private static List<int[]> diffRanges(byte[] oldRaw, byte[] newRaw, int start) {
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while(i < oldRaw.length) {
+            if(oldRaw[i] == newRaw[start + i]) {
+                i ++;
+                continue;
+            }
+            int end = i + 1;
+            for(int j = end; j < oldRaw.length && j - end < DELTA_MERGE_GAP + 1; j ++) {
+                if(oldRaw[j] != newRaw[start + j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[]{i, end});
+            i = end;
+        }
+        return ranges;
+    }
+
     /**
      * 将日志数据转为 UpdateLogInfo对象
      * @param log
@@ -214,14 +458,12 @@ public class Recover {
      */
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
+        li.xid = parseXid(log);
 
-        //将 uid 转为 pgno 和 offset
+        //将 uid 转为 pgno 和 槽字
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        //TODO 为什么这么做
-        li.offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        li.pgno = (int)(uid & ((1L << 32) - 1));
+        li.pgno = Types.uidToPgno(uid);
+        li.slotWord = Types.uidToSlotWord(uid);
 
         int length = (log.length - OF_UPDATE_RAW) / 2;
         li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
@@ -236,53 +478,79 @@ public class Recover {
      * @param flag [REDO/UNDO]
      */
     private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else { //UNDO
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
+        if(log[OF_TYPE] == LOG_TYPE_DELTA) {
+            doDeltaLog(pc, log, flag);
+            return;
         }
-        Page pg = null;
+        UpdateLogInfo xi = parseUpdateLog(log);
+        byte[] raw = flag == REDO ? xi.newRaw : xi.oldRaw;
+        Page pg = getPage(pc, xi.pgno);
         try {
-            pg = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
+            //用于在数据库崩溃后重新打开时,修改数据使用
+            //将raw写入槽指向的位置
+            PageX.update(pg, raw, xi.slotWord);
+        } finally {
+            pg.release();
         }
+    }
+
+    private static DeltaLogInfo parseDeltaLog(byte[] log) {
+        DeltaLogInfo li = new DeltaLogInfo();
+        li.xid = parseXid(log);
+        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.pgno = Types.uidToPgno(uid);
+        li.slotWord = Types.uidToSlotWord(uid);
+        return li;
+    }
+
+    /**
+     * 增量更新日志的重做和撤销处理：把每个区间的新值（重做）或旧值（撤销）写回 DataItem，区间互不重叠
+     * @param pc
+     * @param log
+     * @param flag [REDO/UNDO]，只有带 Old 的日志会被撤销
+     */
+    private static void doDeltaLog(PageCache pc, byte[] log, int flag) {
+        DeltaLogInfo li = parseDeltaLog(log);
+        int copies = li.xid == TransactionManagerImpl.SUPER_XID ? 1 : 2;
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        Page pg = getPage(pc, li.pgno);
         try {
-            //用于在数据库崩溃后重新打开时,修改数据使用
-            //将raw插入pg中的offset位置，不更新offset
-            PageX.recoverUpdate(pg, raw, offset);
+            int pos = OF_UPDATE_RAW;
+            while(pos < log.length) {
+                int offset = buf.getShort(pos) & 0xFFFF;
+                int length = buf.getShort(pos + 2) & 0xFFFF;
+                // [Old] [New]，省略 Old 时只有 [New]
+                int from = pos + LEN_DELTA_RANGE_HEADER + (flag == REDO ? (copies - 1) * length : 0);
+                PageX.update(pg, li.slotWord, offset, log, from, length);
+                pos += LEN_DELTA_RANGE_HEADER + copies * length;
+            }
         } finally {
             pg.release();
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [SlotWord] [Offset] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID+8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_OFFSET = OF_INSERT_SLOT+4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
     /**
      * 生成插入日志
      * @param xid
      * @param pg
+     * @param slotWord
+     * @param offset
      * @param raw
      * @return
      */
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+    public static byte[] insertLog(long xid, Page pg, int slotWord, short offset, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] slotRaw = Parser.int2Byte(slotWord);
+        byte[] offsetRaw = Parser.short2Byte(offset);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, offsetRaw, raw);
     }
 
     /**
@@ -292,8 +560,9 @@ public class Recover {
      */
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
+        li.xid = parseXid(log);
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slotWord = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_OFFSET));
         li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
@@ -307,20 +576,117 @@ public class Recover {
      */
     private static void doInsertLog(PageCache pc, byte[] log, int flag) {
         InsertLogInfo li = parseInsertLog(log);
-        Page pg = null;
+        Page pg = getPage(pc, li.pgno);
         try {
-            pg = pc.getPage(li.pgno);
-        } catch(Exception e) {
-            Panic.panic(e);
+            if(flag == UNDO) {
+                // 撤销：将插入的数据设为无效，数据可能已经被整理碎片移动过，通过槽找到它
+                PageX.setInvalid(pg, li.slotWord);
+            } else {
+                PageX.insert(pg, li.raw, li.slotWord, li.offset);
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [SlotWord]...
+    private static final int OF_FREE_SLOTS = OF_INSERT_PGNO+4;
+
+    /**
+     * 生成释放日志
+     * @param pgno
+     * @param slotWords
+     * @return
+     */
+    public static byte[] freeLog(int pgno, int[] slotWords) {
+        ByteBuffer buf = ByteBuffer.allocate(OF_FREE_SLOTS + slotWords.length * 4);
+        buf.put(LOG_TYPE_FREE).putLong(TransactionManagerImpl.SUPER_XID).putInt(pgno);
+        for(int slotWord : slotWords) {
+            buf.putInt(slotWord);
         }
+        return buf.array();
+    }
+
+    private static FreeLogInfo parseFreeLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        FreeLogInfo li = new FreeLogInfo();
+        li.pgno = buf.getInt(OF_INSERT_PGNO);
+        li.slotWords = new int[(log.length - OF_FREE_SLOTS) / 4];
+        for(int i = 0; i < li.slotWords.length; i ++) {
+            li.slotWords[i] = buf.getInt(OF_FREE_SLOTS + i * 4);
+        }
+        return li;
+    }
+
+    private static void doFreeLog(PageCache pc, byte[] log) {
+        FreeLogInfo li = parseFreeLog(log);
+        Page pg = getPage(pc, li.pgno);
         try {
-            if(flag == UNDO) {
-                // 撤销：将插入的数据设为无效
-                DataItem.setDataItemRawInvalid(li.raw);
+            for(int slotWord : li.slotWords) {
+                PageX.free(pg, slotWord);
             }
-            PageX.recoverInsert(pg, li.raw, li.offset);
         } finally {
             pg.release();
         }
     }
+
+    // [LogType] [XID] [Pgno] [Image]
+    private static final int OF_PAGE_IMAGE = OF_INSERT_PGNO+4;
+
+    /**
+     * 生成整页日志
+     * @param pg
+     * @return
+     */
+    public static byte[] pageLog(Page pg) {
+        byte[] logTypeRaw = {LOG_TYPE_PAGE};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, pg.getData());
+    }
+
+    private static PageLogInfo parsePageLog(byte[] log) {
+        PageLogInfo li = new PageLogInfo();
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_PAGE_IMAGE));
+        li.image = Arrays.copyOfRange(log, OF_PAGE_IMAGE, log.length);
+        return li;
+    }
+
+    private static void doPageLog(PageCache pc, byte[] log) {
+        PageLogInfo li = parsePageLog(log);
+        Page pg = getPage(pc, li.pgno);
+        try {
+            PageX.setImage(pg, li.image);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [RedoLsn] [UndoLsn] [PageCount]
+    private static final int OF_CHECKPOINT_REDO = OF_XID+8;
+    private static final int OF_CHECKPOINT_UNDO = OF_CHECKPOINT_REDO+8;
+    private static final int OF_CHECKPOINT_PAGES = OF_CHECKPOINT_UNDO+8;
+
+    /**
+     * 生成检查点日志
+     * @param redoLsn
+     * @param undoLsn
+     * @param pageCount
+     * @return
+     */
+    public static byte[] checkpointLog(long redoLsn, long undoLsn, int pageCount) {
+        ByteBuffer buf = ByteBuffer.allocate(OF_CHECKPOINT_PAGES + 4);
+        buf.put(LOG_TYPE_CHECKPOINT).putLong(TransactionManagerImpl.SUPER_XID)
+                .putLong(redoLsn).putLong(undoLsn).putInt(pageCount);
+        return buf.array();
+    }
+
+    private static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        CheckpointLogInfo li = new CheckpointLogInfo();
+        li.redoLsn = buf.getLong(OF_CHECKPOINT_REDO);
+        li.undoLsn = buf.getLong(OF_CHECKPOINT_UNDO);
+        li.pageCount = buf.getInt(OF_CHECKPOINT_PAGES);
+        return li;
+    }
 }
@@ -4,7 +4,6 @@ import backend.common.SubArray;
 import backend.data.DataManagerImpl;
 import backend.data.page.Page;
 import backend.utils.Parser;
-import backend.utils.Types;
 import com.google.common.primitives.Bytes;
 
 import java.util.Arrays;
@@ -44,15 +43,28 @@ public interface DataItem {
     }
 
     // 从页面的offset处解析处dataitem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    public static DataItem parseDataItem(Page pg, short offset, long uid, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
-        short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
+        int length = rawLength(raw, offset);
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
-        raw[DataItemImpl.OF_VALID] = (byte)1;
+        setDataItemRawInvalid(raw, 0);
+    }
+
+    public static void setDataItemRawInvalid(byte[] raw, int offset) {
+        raw[offset+DataItemImpl.OF_VALID] = (byte)1;
+    }
+
+    // 位于raw中offset处的dataitem是否有效
+    public static boolean isRawValid(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == (byte)0;
+    }
+
+    // 位于raw中offset处的dataitem的总长度
+    public static int rawLength(byte[] raw, int offset) {
+        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        return size + DataItemImpl.OF_DATA;
     }
 }
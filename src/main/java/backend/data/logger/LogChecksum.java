@@ -0,0 +1,71 @@
+package backend.data.logger;
+
+import com.google.common.hash.Hashing;
+
+import java.util.zip.Checksum;
+
+/**
+ * 日志校验和：CRC32C
+ * JDK 9 之后的 java.util.zip.CRC32C 会被 JIT 编译成 CPU 的 CRC 指令，校验速度接近内存带宽。
+ * 项目按 Java 8 编译，所以通过反射创建它；运行在 Java 8 上时退回到 Guava 的实现，两者的结果相同。
+ */
+class LogChecksum {
+    private static final Class<?> CRC32C = findCrc32c();
+
+    /**
+     * Checksum 对象不是线程安全的，每个线程复用自己的一个
+     */
+    private static final ThreadLocal<Checksum> LOCAL = ThreadLocal.withInitial(LogChecksum::newCrc32c);
+
+    private static Class<?> findCrc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Checksum newCrc32c() {
+        if(CRC32C == null) {
+            return null;
+        }
+        try {
+            return (Checksum)CRC32C.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 计算 b1[off1, off1+len1) 和 b2[off2, off2+len2) 连在一起的 CRC32C
+     */
+    static int crc32c(byte[] b1, int off1, int len1, byte[] b2, int off2, int len2) {
+        Checksum crc = LOCAL.get();
+        if(crc == null) {
+            return guavaCrc32c(b1, off1, len1, b2, off2, len2);
+        }
+        return jdkCrc32c(crc, b1, off1, len1, b2, off2, len2);
+    }
+
+    /**
+     * 用 JDK 的实现计算，JDK 中没有 CRC32C 时返回 null
+     */
+    static Integer jdkCrc32c(byte[] b1, int off1, int len1, byte[] b2, int off2, int len2) {
+        Checksum crc = LOCAL.get();
+        return crc == null ? null : jdkCrc32c(crc, b1, off1, len1, b2, off2, len2);
+    }
+
+    private static int jdkCrc32c(Checksum crc, byte[] b1, int off1, int len1, byte[] b2, int off2, int len2) {
+        crc.reset();
+        crc.update(b1, off1, len1);
+        crc.update(b2, off2, len2);
+        return (int)crc.getValue();
+    }
+
+    static int guavaCrc32c(byte[] b1, int off1, int len1, byte[] b2, int off2, int len2) {
+        return Hashing.crc32c().newHasher()
+                .putBytes(b1, off1, len1)
+                .putBytes(b2, off2, len2)
+                .hash().asInt();
+    }
+}
@@ -1,16 +1,5 @@
 package backend.data.logger;
 
-import backend.utils.Panic;
-import backend.utils.Parser;
-import common.Error;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-
 /**
  * @author Joe
  * @ClassName Logger.java
@@ -19,71 +8,37 @@ import java.nio.channels.FileChannel;
  */
 public interface Logger {
     void log(byte[] data);
-    void truncate(long x) throws Exception;
+    long append(byte[] data);
+    void flush(long lsn);
+
+    /**
+     * 已追加日志的结尾的序号，之后追加的日志的序号都比它大
+     */
+    long end();
+
+    /**
+     * 删除不再需要的旧日志：结束序号小于 lsn 的段
+     */
+    void removeBefore(long lsn);
     byte[] next();
+
+    /**
+     * 下一次 next() 返回的日志的起始序号
+     */
+    long position();
+
+    /**
+     * 移动到序号为 lsn 的日志，之后 next() 从这条日志开始读取
+     */
+    void seek(long lsn);
     void rewind();
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        try {
-            if(!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        /**
-         * 初始化日志文件，校验和设为0，并写入文件开头
-         */
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        return new LoggerImpl(raf, fc, 0);
+        return LoggerImpl.create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
     }
 
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-
-        //从已存在的日志文件创建Logger，并获取初始化数据
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        lg.init();
-
-        return lg;
+        return LoggerImpl.open(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
     }
 }
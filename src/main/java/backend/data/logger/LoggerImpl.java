@@ -2,187 +2,487 @@ package backend.data.logger;
 
 import backend.utils.Panic;
 import backend.utils.Parser;
-import com.google.common.primitives.Bytes;
 import common.Error;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 日志文件读写
  *
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
- * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，这个 BadTail 不一定存在
- *
+ * 日志被切分成多个段文件，文件名为 [path].log.[Base]，Base 是 16 位十六进制的段起始序号
+ * 每个段文件的标准格式为（版本 2）：
+ * [Magic] [Version] [Log1] [Log2] ... [LogN] [BadTail]
+ * Magic 4字节 固定为 "TLOG"
+ * Version 4字节 日志格式的版本
+ * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，这个 BadTail 不一定存在，并且只可能出现在最后一个段
  *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
  * Size 4字节int 标识Data长度
- * Checksum 4字节int,是该条日志的校验和
+ * Checksum 4字节int,是 Size 和 Data 的 CRC32C
+ *
+ * 每条日志自己校验，文件不再有需要在每次写入时改写的整体校验和：打开时从头读取日志，
+ * 第一条不完整或校验失败的日志就是 BadTail 的开始。
+ * Magic 相符但版本不是 2 的段文件，以及旧格式的单个日志文件 [path].log，打开时都按损坏的日志拒绝。
+ *
+ * 日志序号（LSN）：
+ * 段内位置为 offset 的字节的序号是 Base + offset，下一个段的 Base 是上一个段的 Base 加上它的文件长度，序号在段之间连续。
+ * 一条日志不会跨段，当前段放不下时整条写入下一个段。检查点之后不再需要的旧段整个删除，日志的总大小不随数据库的使用时间增长。
+ *
+ * 组提交：
+ * 日志先追加到内存中的缓冲区；需要持久化的线程中有一个成为写入者，
+ * 把缓冲区中积累的所有日志一次写入文件并刷盘，然后唤醒等待的线程。
+ * 写入者刷盘期间其他线程追加的日志进入下一批，并发时每一批日志只需要一次刷盘。
+ * 日志在文件中的顺序和追加的顺序一致，一批日志总是完整地写在上一批之后。
  */
 public class LoggerImpl implements Logger{
-    /**
-     * 种子，用于生成校验和
-     */
-    private static final int SEED = 13331;
+    private static final int MAGIC = 0x544C4F47;
+    private static final int VERSION = 2;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    static final int LEN_HEADER = OF_VERSION + 4;
 
     private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
     private static final int OF_DATA = OF_CHECKSUM + 4;
 
+    /**
+     * 顺序读取日志时每次从文件读入的大小
+     */
+    private static final int READ_AHEAD = 1 << 20;
+
     public static final String LOG_SUFFIX = ".log";
+    /**
+     * 段文件的默认大小，超过一个段的单条日志独占一个段
+     */
+    static final long DEFAULT_SEGMENT_SIZE = 1 << 24;
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    /**
+     * 一个段文件，length 是文件中已经写入的长度（包括文件头），只由写入者线程增长
+     */
+    private static class Segment {
+        final long base;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel fc;
+        volatile long length;
+
+        Segment(long base, File file) throws IOException {
+            this.base = base;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.fc = raf.getChannel();
+            this.length = raf.length();
+        }
+
+        long end() {
+            return base + length;
+        }
+
+        void close() throws IOException {
+            fc.close();
+            raf.close();
+        }
+    }
+
+    /**
+     * 缓冲区中属于同一个段的一段连续日志，offset 是它在段文件中的位置
+     */
+    private static class Chunk {
+        final long base;
+        final long offset;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        Chunk(long base, long offset) {
+            this.base = base;
+            this.offset = offset;
+        }
+    }
+
+    private String path;
+    private long segmentSize;
+    /**
+     * 所有的段，按 Base 排序；只有写入者线程新建段，只有 removeBefore 删除段
+     */
+    private ConcurrentSkipListMap<Long, Segment> segments;
     private Lock lock;
 
     /**
-     * 当前日志指针的位置
+     * 顺序读取时当前所在的段，以及下一条日志的序号
      */
+    private Segment readSegment;
     private long position;
 
     /**
-     * 初始化时记录，log操作不更新
+     * 顺序读取日志的预读缓冲区，缓存了当前段中 [readStart, readStart+readLength) 的内容，读到段的末尾时释放
      */
-    private long fileSize;
+    private byte[] readBuf;
+    private long readStart;
+    private int readLength;
 
     /**
-     * 后续所有日志计算的Checksum
+     * 已追加但还没有写入文件的日志，按段分成多块
+     */
+    private List<Chunk> buffer;
+    /**
+     * 追加位置所在的段，以及这个段包括缓冲区在内的长度
+     */
+    private long tailBase;
+    private long tailLength;
+    /**
+     * 已追加日志的结尾的序号，日志追加后的值作为它的序号（LSN）
+     */
+    private long appended;
+    /**
+     * 已经刷盘的日志的结尾的序号
      */
-    private int xChecksum;
+    private long durable;
+    /**
+     * 是否有线程正在写入、刷盘
+     */
+    private boolean flushing;
+    private Condition flushDone;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
+    LoggerImpl(String path, long segmentSize) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        segments = new ConcurrentSkipListMap<>();
         lock = new ReentrantLock();
+        flushDone = lock.newCondition();
+        buffer = new ArrayList<>();
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    /**
+     * 新日志文件的文件头
+     */
+    static byte[] header() {
+        ByteBuffer buf = ByteBuffer.allocate(LEN_HEADER);
+        buf.putInt(OF_MAGIC, MAGIC);
+        buf.putInt(OF_VERSION, VERSION);
+        return buf.array();
+    }
+
+    private static File segmentFile(String path, long base) {
+        return new File(String.format("%s%s.%016x", path, LOG_SUFFIX, base));
     }
 
     /**
-     * 从一个已存在日志文件获取初始化数据
+     * 找出 path 的所有段文件，按 Base 排序
      */
-    void init() {
-        long size = 0;
-        try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+    private static TreeMap<Long, File> listSegments(String path) {
+        File prefix = new File(path + LOG_SUFFIX + ".").getAbsoluteFile();
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] candidates = prefix.getParentFile().listFiles();
+        if(candidates == null) {
+            return files;
+        }
+        for(File f : candidates) {
+            String name = f.getName();
+            if(!name.startsWith(prefix.getName()) || name.length() != prefix.getName().length() + 16) {
+                continue;
+            }
+            try {
+                files.put(Long.parseUnsignedLong(name.substring(prefix.getName().length()), 16), f);
+            } catch(NumberFormatException e) {
+                // 不是段文件
+            }
         }
-        if(size < 4) {
+        return files;
+    }
+
+    /**
+     * 创建一个空的日志
+     */
+    static LoggerImpl create(String path, long segmentSize) {
+        if(new File(path + LOG_SUFFIX).exists() || !listSegments(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
+        }
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        lg.createSegment(0);
+        lg.tailLength = LEN_HEADER;
+        lg.appended = lg.durable = LEN_HEADER;
+        lg.rewind();
+        return lg;
+    }
+
+    /**
+     * 打开已有的日志
+     */
+    static LoggerImpl open(String path, long segmentSize) {
+        // 旧格式的单个日志文件，版本不受支持
+        if(new File(path + LOG_SUFFIX).exists()) {
             Panic.panic(Error.BadLogFileException);
         }
+        TreeMap<Long, File> files = listSegments(path);
+        if(files.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        for(Map.Entry<Long, File> e : files.entrySet()) {
+            File f = e.getValue();
+            if(!f.canRead() || !f.canWrite()) {
+                Panic.panic(Error.FileCannotRWException);
+            }
+            try {
+                lg.segments.put(e.getKey(), new Segment(e.getKey(), f));
+            } catch(IOException ex) {
+                Panic.panic(ex);
+            }
+        }
+        lg.init();
+        return lg;
+    }
+
+    /**
+     * 从已存在的段文件获取初始化数据
+     */
+    void init() {
+        for(Segment s : segments.values()) {
+            ByteBuffer raw = ByteBuffer.allocate(LEN_HEADER);
+            try {
+                s.fc.read(raw, 0);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            boolean complete = s.length >= LEN_HEADER && raw.getInt(OF_MAGIC) == MAGIC;
+            if(complete && raw.getInt(OF_VERSION) != VERSION) {
+                // 不认识的版本，不论是哪个段都拒绝
+                Panic.panic(Error.BadLogFileException);
+            }
+            if(!complete) {
+                if(s.base == segments.firstKey()) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+                // 新建段时崩溃，文件头还没有落盘，这个段和之后的段中不会有已经刷盘的日志
+                removeFrom(s.base);
+                break;
+            }
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
 
         checkAndRemoveTail();
     }
 
 
     /**
-     * 在打开一个日志文件时，需要首先校验日志文件的 XChecksum，并移除文件尾部可能存在的 BadTail，
-     * 由于 BadTail 该条日志尚未写入完成，文件的校验和也就不会包含该日志的校验和，去掉 BadTail 即可保证日志文件的一致性。
+     * 在打开日志时，需要移除可能存在的 BadTail，
+     * 一批日志刷盘时崩溃，这一批中可能只有一部分落盘，第一条不完整的日志之后的内容都是 BadTail。
+     * 一批日志可能跨越多个段，BadTail 所在的段被截断，之后的段整个删除。
+     * 这一批日志的写入者还没有返回，它们不会被任何页面依赖，丢弃即可。
      *
      * 检查并移除bad tail
      */
     private void checkAndRemoveTail() {
-        rewind();
-
-        int xCheck = 0;
-        while(true) {
-            byte[] log = internNext();
-            if(log == null) {
+        Segment last = null;
+        for(Segment s : segments.values()) {
+            // 段之间的序号必须连续，否则从这里开始都是没有写完的段
+            if(last != null && s.base != last.end()) {
+                removeFrom(s.base);
+                break;
+            }
+            readSegment = s;
+            position = s.base + LEN_HEADER;
+            while(readRecord() != null) {
+            }
+            last = s;
+            if(position < s.end()) {
+                try {
+                    //截断文件到正常日志的结尾
+                    s.fc.truncate(position - s.base);
+                    s.fc.force(false);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                s.length = position - s.base;
+                removeFrom(s.base + 1);
                 break;
             }
-            xCheck = calChecksum(xCheck, log);
         }
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+        tailBase = last.base;
+        tailLength = last.length;
+        appended = durable = last.end();
+        rewind();
+    }
+
+    /**
+     * 删除 Base 不小于 base 的所有段
+     */
+    private void removeFrom(long base) {
+        for(Segment s : new ArrayList<>(segments.tailMap(base).values())) {
+            deleteSegment(s);
         }
+    }
 
+    private void deleteSegment(Segment s) {
+        segments.remove(s.base);
         try {
-            //截断文件到正常日志的结尾
-            truncate(position);
-        } catch (Exception e) {
+            s.close();
+            Files.deleteIfExists(s.file.toPath());
+        } catch(IOException e) {
             Panic.panic(e);
         }
+    }
+
+    /**
+     * 新建一个段文件，写入文件头并刷盘，同时刷写目录保证新文件本身不会丢失
+     */
+    private Segment createSegment(long base) {
+        File f = segmentFile(path, base);
+        Segment s = null;
         try {
-            //设置文件指针指向 position 位置
-            file.seek(position);
-        } catch (IOException e) {
+            if(!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+            s = new Segment(base, f);
+            ByteBuffer buf = ByteBuffer.wrap(header());
+            while(buf.hasRemaining()) {
+                s.fc.write(buf, buf.position());
+            }
+            s.fc.force(false);
+            s.length = LEN_HEADER;
+            forceDirectory(f.getAbsoluteFile().getParentFile());
+        } catch(IOException e) {
             Panic.panic(e);
         }
-        rewind();
+        segments.put(base, s);
+        return s;
+    }
+
+    private static void forceDirectory(File dir) {
+        try(FileChannel fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            fc.force(true);
+        } catch(IOException e) {
+            // 有的平台不能打开或同步目录，只能依赖文件系统自己的元数据持久化
+        }
     }
 
     /**
-     * 生成一条日志的校验和
-     * 单条日志的校验和，其实就是通过一个指定的种子实现的
-     * @param xCheck
-     * @param log
+     * 生成一条日志的校验和：日志中 Size 和 Data 部分的 CRC32C
+     * @param log 包括 Size 和 Checksum 在内的整条日志
+     * @param off 日志在 log 中的开始位置
+     * @param size Data 的长度
      * @return
      */
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    private static int calChecksum(byte[] log, int off, int size) {
+        return LogChecksum.crc32c(log, off + OF_SIZE, OF_CHECKSUM - OF_SIZE, log, off + OF_DATA, size);
     }
 
     /**
-     * 向日志文件写入日志
+     * 向日志文件写入日志，返回时日志已经刷盘
      * @param data
      */
     @Override
     public void log(byte[] data) {
+        flush(append(data));
+    }
+
+    /**
+     * 把日志追加到缓冲区，不等待刷盘
+     * 调用方在 flush 返回之前不能让依赖这条日志的页面被写回磁盘（持有页面的引用即可）
+     * @param data
+     * @return 日志结尾的序号，用于 flush
+     */
+    @Override
+    public long append(byte[] data) {
         //将数据包裹成日志格式
         byte[] log = wrapLog(data);
-        //插入日志
-        ByteBuffer buf = ByteBuffer.wrap(log);
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+            // 当前段放不下这条日志时，从下一个段开始
+            if(tailLength > LEN_HEADER && tailLength + log.length > segmentSize) {
+                tailBase += tailLength;
+                tailLength = LEN_HEADER;
+            }
+            Chunk chunk = buffer.isEmpty() ? null : buffer.get(buffer.size() - 1);
+            if(chunk == null || chunk.base != tailBase) {
+                chunk = new Chunk(tailBase, tailLength);
+                buffer.add(chunk);
+            }
+            chunk.data.write(log, 0, log.length);
+            tailLength += log.length;
+            appended = tailBase + tailLength;
+            return appended;
         } finally {
             lock.unlock();
         }
-        //更新文件校验和
-        updateXChecksum(log);
     }
 
     /**
-     * 更新文件的校验和
-     * @param log
+     * 等待序号 lsn 及之前的日志刷盘
+     * 没有线程在写入时，当前线程成为写入者，把缓冲区中所有的日志（包括其他线程追加的）一起写入并刷盘
+     * @param lsn
      */
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public void flush(long lsn) {
+        lock.lock();
+        try {
+            while(durable < lsn) {
+                if(flushing) {
+                    flushDone.awaitUninterruptibly();
+                    continue;
+                }
+                flushing = true;
+                List<Chunk> batch = buffer;
+                buffer = new ArrayList<>();
+                long end = appended;
+                lock.unlock();
+                try {
+                    write(batch);
+                } finally {
+                    lock.lock();
+                    flushing = false;
+                }
+                durable = end;
+                flushDone.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把一批日志写到各自的段中并刷盘，需要时新建段文件
+     * 只有写入者线程调用，写入期间其他线程只会追加缓冲区
+     * @param batch
+     */
+    private void write(List<Chunk> batch) {
+        Set<Segment> touched = new LinkedHashSet<>();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false);
+            for(Chunk chunk : batch) {
+                Segment s = segments.get(chunk.base);
+                if(s == null) {
+                    s = createSegment(chunk.base);
+                }
+                ByteBuffer buf = ByteBuffer.wrap(chunk.data.toByteArray());
+                long pos = chunk.offset;
+                while(buf.hasRemaining()) {
+                    pos += s.fc.write(buf, pos);
+                }
+                s.length = pos;
+                touched.add(s);
+            }
+            for(Segment s : touched) {
+                s.fc.force(false);
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
@@ -193,68 +493,137 @@ public class LoggerImpl implements Logger{
      * @param data
      * @return
      */
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    private static byte[] wrapLog(byte[] data) {
+        byte[] log = new byte[OF_DATA + data.length];
+        System.arraycopy(Parser.int2Byte(data.length), 0, log, OF_SIZE, 4);
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        System.arraycopy(Parser.int2Byte(calChecksum(log, 0, data.length)), 0, log, OF_CHECKSUM, 4);
+        return log;
+    }
+
+    @Override
+    public long end() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * 截断日志到 x 地址位置
-     * @param x
-     * @throws Exception
+     * 删除结束序号小于 lsn 的段：以 lsn 结束的日志所在的段会被保留，正在追加的段也总是保留
+     * @param lsn
      */
     @Override
-    public void truncate(long x) throws Exception {
+    public void removeBefore(long lsn) {
         lock.lock();
         try {
-            fc.truncate(x);
+            for(Segment s : segments.values()) {
+                if(s.base == segments.lastKey() || s.end() >= lsn) {
+                    break;
+                }
+                if(readSegment == s) {
+                    readSegment = null;
+                }
+                deleteSegment(s);
+            }
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 获取一条日志的 Data
-     * @return
+     * 从当前段读取一条日志的 Data
+     * @return 当前段中没有更多完整、正确的日志时返回 null
      */
-    private byte[] internNext() {
-        // position 指向该条日志的起始位置，是绝对地址
+    private byte[] readRecord() {
+        // position 指向该条日志的起始位置
         // OF_DATA 是相对地址，值为8
-        if(position + OF_DATA >= fileSize) {
+        if(!readAhead(position, OF_DATA)) {
             return null;
         }
         //读取当前日志的 Size
-        ByteBuffer tmp = ByteBuffer.allocate(4);
-        try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch(IOException e) {
-            Panic.panic(e);
+        int off = (int)(position - readStart);
+        int size = Parser.parseInt(Arrays.copyOfRange(readBuf, off + OF_SIZE, off + OF_CHECKSUM));
+        if(size < 0 || !readAhead(position, OF_DATA + size)) {
+            return null;
         }
-        int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize) {
+        off = (int)(position - readStart);
+        //根据Size和Data生成校验和，并和当前日志校验和比较，判断数据是否正确
+        int checkSum1 = calChecksum(readBuf, off, size);
+        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(readBuf, off + OF_CHECKSUM, off + OF_DATA));
+        if(checkSum1 != checkSum2) {
             return null;
         }
-        //读取当前日志的 Data
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+        // position 指向下一条日志的起始位置
+        position += OF_DATA + size;
+        return Arrays.copyOfRange(readBuf, off + OF_DATA, off + OF_DATA + size);
+    }
+
+    /**
+     * 获取下一条日志的 Data，当前段读完后接着读下一个段
+     * @return 没有更多日志时返回 null
+     */
+    private byte[] internNext() {
+        if(readSegment == null) {
+            return null;
+        }
+        byte[] log = readRecord();
+        skipFinishedSegments();
+        return log;
+    }
+
+    /**
+     * 当前段已经读完时移动到下一个段的开头，position 总是下一条日志真正的起始序号
+     */
+    private void skipFinishedSegments() {
+        while(readSegment != null && position >= readSegment.end()) {
+            Map.Entry<Long, Segment> next = segments.higherEntry(readSegment.base);
+            if(next == null) {
+                return;
+            }
+            readSegment = next.getValue();
+            position = readSegment.base + LEN_HEADER;
+        }
+    }
+
+    /**
+     * 保证当前段中序号 [pos, pos+length) 的内容在预读缓冲区中，不在时一次读入一大块：
+     * 通常从 pos 开始向后读；pos 在缓冲区之前时（倒序读取日志）读入以 pos+length 结尾的一块
+     * @return 段中没有这么多内容时返回 false，同时释放预读缓冲区
+     */
+    private boolean readAhead(long pos, int length) {
+        if(readBuf != null && pos >= readStart && pos + length <= readStart + readLength) {
+            return true;
+        }
+        Segment s = readSegment;
+        if(pos + length > s.end()) {
+            readBuf = null;
+            return false;
+        }
+        boolean backward = readBuf != null && pos < readStart;
+        if(readBuf == null || readBuf.length < length) {
+            readBuf = new byte[Math.max(length, READ_AHEAD)];
+        }
+        long start = backward ? Math.max(s.base, pos + length - readBuf.length) : pos;
+        ByteBuffer buf = ByteBuffer.wrap(readBuf, 0, (int)Math.min(readBuf.length, s.end() - start));
         try {
-            fc.position(position);
-            fc.read(buf);
+            while(buf.hasRemaining()) {
+                if(s.fc.read(buf, start - s.base + buf.position()) < 0) {
+                    break;
+                }
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
-
-        byte[] log = buf.array();
-        //根据Data生成校验和，并和当前日志校验和比较，判断数据是否正确
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if(checkSum1 != checkSum2) {
-            return null;
+        readStart = start;
+        readLength = buf.position();
+        if(pos + length > readStart + readLength) {
+            readBuf = null;
+            return false;
         }
-        // position 指向下一条日志的起始位置
-        position += log.length;
-        return log;
+        return true;
     }
 
     /**
@@ -266,29 +635,68 @@ public class LoggerImpl implements Logger{
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if(log == null) {
-                return null;
+            return internNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 下一次 next() 返回的日志的起始序号
+     */
+    @Override
+    public long position() {
+        lock.lock();
+        try {
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 移动到序号为 lsn 的日志，之后 next() 从这条日志开始读取
+     * lsn 必须是一条日志的起始序号（或者一个段的结尾），通常来自之前的 position()
+     */
+    @Override
+    public void seek(long lsn) {
+        lock.lock();
+        try {
+            Map.Entry<Long, Segment> floor = segments.floorEntry(lsn);
+            if(floor == null) {
+                floor = segments.firstEntry();
             }
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            readSegment = floor == null ? null : floor.getValue();
+            position = readSegment == null ? 0 : Math.max(lsn, readSegment.base + LEN_HEADER);
+            skipFinishedSegments();
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 初始化 position
+     * 回到最早的段的第一条日志
      */
     @Override
     public void rewind() {
-        position = 4;
+        lock.lock();
+        try {
+            Map.Entry<Long, Segment> first = segments.firstEntry();
+            readSegment = first == null ? null : first.getValue();
+            position = readSegment == null ? 0 : readSegment.base + LEN_HEADER;
+            readBuf = null;
+            skipFinishedSegments();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void close() {
         try {
-            fc.close();
-            file.close();
+            for(Segment s : segments.values()) {
+                s.close();
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
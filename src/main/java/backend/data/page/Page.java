@@ -1,11 +1,24 @@
 package backend.data.page;
 
+import java.nio.ByteBuffer;
+
 public interface Page {
     void lock();
     void unlock();
     void release();
     void setDirty(boolean dirty);
     boolean isDirty();
+
+    /**
+     * 页面最近一次从干净变脏时的日志序号，只在页面是脏页时有意义
+     */
+    long getRecLsn();
     int getPageNumber();
     byte[] getData();
+
+    /**
+     * 以 ByteBuffer 的方式访问页面数据，不需要拿到底层的数组
+     * 返回的 buffer 被所有线程共享，只能使用带下标的绝对读写（getShort(int) / putShort(int, short) 等），不能修改 position
+     */
+    ByteBuffer getBuffer();
 }
@@ -3,6 +3,7 @@ package backend.data.page;
 
 import backend.data.pageCache.PageCache;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -17,10 +18,20 @@ public class PageImpl implements Page {
      */
     private byte[] data;
 
+    /**
+     * data 上的 ByteBuffer 视图，只用于绝对读写
+     */
+    private ByteBuffer buffer;
+
     /**
      * 标志着这个页面是否是脏页面，在缓存驱逐的时候，脏页面需要被写回磁盘
      */
-    private boolean dirty;
+    private volatile boolean dirty;
+
+    /**
+     * 页面从干净变脏时的日志序号：之后这一页的修改对应的日志都不早于它，检查点据此决定可以删除哪些日志
+     */
+    private volatile long recLsn;
 
     /**
      * 保存了一个 PageCache（还未定义）的引用，用来方便在拿到 Page 的引用时可以快速对这个页面的缓存进行释放操作
@@ -35,6 +46,7 @@ public class PageImpl implements Page {
     public PageImpl(int pageNumber, byte[] data, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
+        this.buffer = ByteBuffer.wrap(data);
         this.pc = pc;
         lock = new ReentrantLock();
     }
@@ -56,9 +68,18 @@ public class PageImpl implements Page {
 
     @Override
     public void setDirty(boolean dirty) {
+        // 修改页面的一方在追加日志之前标记脏页，recLsn 不会晚于这次修改的日志
+        if(dirty && !this.dirty && pc != null) {
+            recLsn = pc.currentLsn();
+        }
         this.dirty = dirty;
     }
 
+    @Override
+    public long getRecLsn() {
+        return recLsn;
+    }
+
     @Override
     public boolean isDirty() {
         return dirty;
@@ -74,4 +95,9 @@ public class PageImpl implements Page {
         return data;
     }
 
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
 }
@@ -14,10 +14,15 @@ import java.util.Arrays;
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
+ *
+ * PageCount
+ * db关闭时将数据库的逻辑页数写入116~119字节，.db 文件按区段预分配，文件长度不再等于页数
+ * 为0表示未记录（旧文件），此时以文件长度为准
  */
 public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    private static final int OF_PAGES = OF_VC + 2 * LEN_VC;
 
     public static byte[] InitRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
@@ -56,6 +61,25 @@ public class PageOne {
         System.arraycopy(raw, OF_VC, raw, OF_VC+LEN_VC, LEN_VC);
     }
 
+    /**
+     * 关闭时记录数据库的逻辑页数
+     * @param pg
+     * @param pageNumber
+     */
+    public static void setPageCount(Page pg, int pageNumber) {
+        pg.setDirty(true);
+        pg.getBuffer().putInt(OF_PAGES, pageNumber);
+    }
+
+    /**
+     * 获取上一次正常关闭时记录的逻辑页数，未记录时返回0
+     * @param pg
+     * @return
+     */
+    public static int getPageCount(Page pg) {
+        return pg.getBuffer().getInt(OF_PAGES);
+    }
+
     /**
      * 校验字节
      * @param pg
@@ -1,21 +1,37 @@
 package backend.data.page;
 
+import backend.data.dataItem.DataItem;
 import backend.data.pageCache.PageCache;
-import backend.utils.Parser;
-
 
 import java.util.Arrays;
 
 /**
  * PageX管理普通页
- * 普通页结构:一个普通页面以一个 2 字节无符号数起始，表示这一页的空闲位置的偏移。剩下的部分都是实际存储的数据。
- * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * 普通页采用槽式结构：页头之后是从前往后增长的数据区，页尾是从后往前增长的槽目录。
+ * [FreeSpaceOffset] [SlotCount] [Data ...] [... Free ...] [SlotN-1] ... [Slot1] [Slot0]
+ * FreeSpaceOffset: 2字节 数据区空闲位置开始偏移
+ * SlotCount: 2字节 槽目录中槽的个数
+ * Slot: 4字节 [Offset 2][Generation 2]，Offset 为 0 表示空闲槽
+ *
+ * DataItem 的 UID 由页号和槽字（[Generation 2][Slot 2]）组成，而不是页内偏移：
+ * 整理碎片时数据在页内移动，只需要修改槽中的 Offset，UID 保持不变；
+ * 被释放的槽再次使用时 Generation 加一，残留的旧 UID（比如索引中的）不会指向新的数据。
+ * 槽目录只增不减，释放的槽会被之后的插入复用；Generation 已经用到最大值的槽释放后不再复用，
+ * 否则版本号回绕，旧 UID 又会指向新的数据。
  */
 public class PageX {
 
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final short OF_SLOTS = 2;
+    private static final short OF_DATA = 4;
+    public static final int SLOT_SIZE = 4;
+    /**
+     * 槽的最大版本号，这个版本的数据释放之后槽就退役了
+     */
+    private static final short MAX_GENERATION = (short)0xFFFF;
+    /**
+     * 空页上数据区和槽目录一共可以使用的空间
+     */
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
     public static byte[] initRaw() {
@@ -30,59 +46,253 @@ public class PageX {
      * @param ofData
      */
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        raw[OF_FREE] = (byte)(ofData >> 8);
+        raw[OF_FREE + 1] = (byte)ofData;
+    }
+    private static void setFSO(Page pg, short ofData) {
+        pg.getBuffer().putShort(OF_FREE, ofData);
     }
 
     // 获取pg的FSO
     public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+        short fso = pg.getBuffer().getShort(OF_FREE);
+        // 新建的页面不再立刻落盘，崩溃后可能读到全 0 的页面，把它当作空页
+        return fso < OF_DATA ? OF_DATA : fso;
     }
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+
+    private static int getSlotCount(Page pg) {
+        return pg.getBuffer().getShort(OF_SLOTS) & 0xFFFF;
     }
 
-    // 将raw插入pg中，返回插入位置
-    public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
+    private static int slotPosition(int slot) {
+        return PageCache.PAGE_SIZE - (slot + 1) * SLOT_SIZE;
+    }
+
+    private static short getSlotOffset(Page pg, int slot) {
+        return pg.getBuffer().getShort(slotPosition(slot));
     }
 
-    // 获取页面的空闲空间大小
+    private static short getSlotGeneration(Page pg, int slot) {
+        return pg.getBuffer().getShort(slotPosition(slot) + 2);
+    }
+
+    private static void setSlot(Page pg, int slot, short offset, short generation) {
+        pg.getBuffer().putShort(slotPosition(slot), offset);
+        pg.getBuffer().putShort(slotPosition(slot) + 2, generation);
+    }
+
+    /**
+     * 槽字：[Generation 2][Slot 2]，是 UID 的低 32 位
+     */
+    public static int slotWord(int slot, short generation) {
+        return (generation & 0xFFFF) << 16 | slot;
+    }
+
+    private static int slotOf(int slotWord) {
+        return slotWord & 0xFFFF;
+    }
+
+    private static short generationOf(int slotWord) {
+        return (short)(slotWord >>> 16);
+    }
+
+    /**
+     * 获取页面的空闲空间大小：除去页头、槽目录和有效数据之外的所有空间，包括已删除数据占用、需要整理才能使用的部分
+     */
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        int slots = getSlotCount(pg);
+        int free = MAX_FREE_SPACE - slots * SLOT_SIZE;
+        for(int slot = 0; slot < slots; slot ++) {
+            short offset = getSlotOffset(pg, slot);
+            if(offset != 0 && DataItem.isRawValid(pg.getData(), offset)) {
+                free -= DataItem.rawLength(pg.getData(), offset);
+            }
+        }
+        return free;
+    }
+
+    /**
+     * 页面的连续空闲空间能否直接放下长度为 length 的数据（没有空闲槽时还需要一个新的槽）
+     */
+    public static boolean hasRoom(Page pg, int length) {
+        int slots = getSlotCount(pg);
+        if(findFreeSlot(pg) < 0) {
+            slots ++;
+        }
+        return getFSO(pg) + length <= PageCache.PAGE_SIZE - slots * SLOT_SIZE;
+    }
+
+    /**
+     * 下一次插入使用的槽：优先复用空闲槽（版本号加一），没有空闲槽时在目录末尾新增一个
+     * 已经退役的槽不会被复用
+     * @return 槽字
+     */
+    public static int nextSlot(Page pg) {
+        int slot = findFreeSlot(pg);
+        if(slot < 0) {
+            return slotWord(getSlotCount(pg), (short)0);
+        }
+        return slotWord(slot, (short)(getSlotGeneration(pg, slot) + 1));
+    }
+
+    /**
+     * 槽字是否是新增的槽：新增的槽版本号为 0，复用的槽版本号至少为 1（版本号用到最大值的槽不再复用，不会回绕到 0）
+     * 复用槽的插入不占用槽目录的空间
+     */
+    public static boolean isNewSlot(int slotWord) {
+        return generationOf(slotWord) == 0;
+    }
+
+    private static int findFreeSlot(Page pg) {
+        int slots = getSlotCount(pg);
+        for(int slot = 0; slot < slots; slot ++) {
+            if(getSlotOffset(pg, slot) == 0 && getSlotGeneration(pg, slot) != MAX_GENERATION) {
+                return slot;
+            }
+        }
+        return -1;
     }
 
+    /**
+     * 获取槽字对应的数据在页内的偏移
+     * @return 槽不存在、已被释放或者已经被其他数据复用时返回 -1
+     */
+    public static short getOffset(Page pg, int slotWord) {
+        int slot = slotOf(slotWord);
+        if(slot >= getSlotCount(pg) || getSlotGeneration(pg, slot) != generationOf(slotWord)) {
+            return -1;
+        }
+        short offset = getSlotOffset(pg, slot);
+        return offset == 0 ? -1 : offset;
+    }
 
     /**
-     * 用于在数据库崩溃后重新打开时,恢复例程直接插入数据
-     * 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
+     * 将raw插入pg中offset位置，并让槽字指向它，FSO 设置为较大的偏移
+     * 插入和恢复例程的重做都使用这个方法；重做时页面可能处于之后的状态，越界的写入直接忽略（之后的整页日志会覆盖它）
      * @param pg
      * @param raw
+     * @param slotWord
      * @param offset
      */
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    public static void insert(Page pg, byte[] raw, int slotWord, short offset) {
+        int slot = slotOf(slotWord);
+        int slots = Math.max(getSlotCount(pg), slot + 1);
+        if(offset < OF_DATA || offset + raw.length > PageCache.PAGE_SIZE - slots * SLOT_SIZE) {
+            return;
+        }
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+        if(slots > getSlotCount(pg)) {
+            // 新增的槽之间如果有空隙，它们是空闲槽
+            for(int s = getSlotCount(pg); s < slot; s ++) {
+                setSlot(pg, s, (short)0, (short)0);
+            }
+            pg.getBuffer().putShort(OF_SLOTS, (short)slots);
+        }
+        setSlot(pg, slot, offset, generationOf(slotWord));
+        if(getFSO(pg) < offset + raw.length) {
+            setFSO(pg, (short)(offset + raw.length));
         }
     }
 
-
     /**
      * 用于在数据库崩溃后重新打开时,修改数据使用
-     * 将raw插入pg中的offset位置，不更新offset
+     * 将raw写入槽字对应的数据处，槽已经不指向这条数据时忽略
      * @param pg
      * @param raw
-     * @param offset
+     * @param slotWord
      */
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    public static void update(Page pg, byte[] raw, int slotWord) {
+        short offset = getOffset(pg, slotWord);
+        if(offset < 0 || offset + raw.length > PageCache.PAGE_SIZE) {
+            return;
+        }
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
+
+    /**
+     * 用于重做、撤销增量更新日志
+     * 将 src[from, from+length) 写入槽字对应的数据中从 pos 开始的位置，槽已经不指向这条数据时忽略
+     */
+    public static void update(Page pg, int slotWord, int pos, byte[] src, int from, int length) {
+        short offset = getOffset(pg, slotWord);
+        if(offset < 0 || offset + pos + length > PageCache.PAGE_SIZE) {
+            return;
+        }
+        pg.setDirty(true);
+        System.arraycopy(src, from, pg.getData(), offset + pos, length);
+    }
+
+    /**
+     * 将槽字对应的数据设为无效，用于撤销插入
+     */
+    public static void setInvalid(Page pg, int slotWord) {
+        short offset = getOffset(pg, slotWord);
+        if(offset < 0) {
+            return;
+        }
+        pg.setDirty(true);
+        DataItem.setDataItemRawInvalid(pg.getData(), offset);
+    }
+
+    /**
+     * 释放槽字对应的数据：槽变为空闲，数据占用的空间在整理碎片后才能再次使用
+     * @return 释放的有效数据长度，槽已经不指向这条数据时返回 0
+     */
+    public static int free(Page pg, int slotWord) {
+        short offset = getOffset(pg, slotWord);
+        if(offset < 0) {
+            return 0;
+        }
+        pg.setDirty(true);
+        int slot = slotOf(slotWord);
+        setSlot(pg, slot, (short)0, getSlotGeneration(pg, slot));
+        return DataItem.isRawValid(pg.getData(), offset) ? DataItem.rawLength(pg.getData(), offset) : 0;
+    }
+
+    /**
+     * 整理碎片：有效数据按槽的顺序紧密排列到数据区开头，无效数据的槽被释放，槽号和版本号都不变
+     * 数据会在页内移动，调用方需要保证没有其他线程持有这一页上的 DataItem
+     */
+    public static void compact(Page pg) {
+        byte[] data = pg.getData();
+        byte[] old = Arrays.copyOf(data, PageCache.PAGE_SIZE);
+        int slots = getSlotCount(pg);
+        int fso = OF_DATA;
+        for(int slot = 0; slot < slots; slot ++) {
+            short offset = getSlotOffset(pg, slot);
+            if(offset == 0) {
+                continue;
+            }
+            if(!DataItem.isRawValid(old, offset)) {
+                setSlot(pg, slot, (short)0, getSlotGeneration(pg, slot));
+                continue;
+            }
+            int length = DataItem.rawLength(old, offset);
+            System.arraycopy(old, offset, data, fso, length);
+            setSlot(pg, slot, (short)fso, getSlotGeneration(pg, slot));
+            fso += length;
+        }
+        // 空闲区清零，整页日志的内容只取决于有效数据
+        Arrays.fill(data, fso, PageCache.PAGE_SIZE - slots * SLOT_SIZE, (byte)0);
+        setFSO(pg, (short)fso);
+        pg.setDirty(true);
+    }
+
+    /**
+     * 页面中需要整理才能使用的空间（已删除或无效数据占用的部分）
+     */
+    public static int getFragmentedSpace(Page pg) {
+        int contiguous = PageCache.PAGE_SIZE - getSlotCount(pg) * SLOT_SIZE - getFSO(pg);
+        return getFreeSpace(pg) - contiguous;
+    }
+
+    /**
+     * 用整页的内容覆盖页面，用于重做整理碎片时记录的整页日志
+     */
+    public static void setImage(Page pg, byte[] image) {
+        pg.setDirty(true);
+        System.arraycopy(image, 0, pg.getData(), 0, PageCache.PAGE_SIZE);
+    }
 }
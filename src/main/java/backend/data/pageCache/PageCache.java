@@ -8,12 +8,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.function.LongSupplier;
 
 public interface PageCache {
     /**
      * 默认数据页大小定为 8K,缓存大小默认也为 8K
      */
     public static final int PAGE_SIZE = 1 << 13;
+    /**
+     * .db 文件默认每次预分配 4MB
+     */
+    public static final long DEFAULT_EXTENT_SIZE = 1 << 22;
 
     int newPage(byte[] initData);
     Page getPage(int pgno) throws Exception;
@@ -24,6 +29,38 @@ public interface PageCache {
     int getPageNumber();
     void flushPage(Page pg);
 
+    /**
+     * 页面当前是否只被调用方这一个引用持有
+     * 在页面锁下得到 true 时，没有其他线程持有这一页上的 DataItem，可以移动页内的数据
+     */
+    boolean isExclusive(Page pg);
+
+    /**
+     * 检查点：把当前未被引用的脏页按页号顺序写回，然后统一 fsync 一次
+     * @return 仍然是脏页（被引用而没有写回）的页面中最小的 recLsn，没有脏页时返回 Long.MAX_VALUE
+     */
+    long checkpoint();
+
+    /**
+     * 等待所有已经写入文件系统的页面（包括驱逐时写回的）落盘
+     */
+    void force();
+
+    /**
+     * 设置日志序号的来源，页面变脏时从这里取得 recLsn
+     */
+    void setLsnSource(LongSupplier lsnSource);
+
+    /**
+     * 当前的日志序号，没有设置来源时为 0
+     */
+    long currentLsn();
+
+    /**
+     * 预读提示：异步地把从 pgno 开始的 count 个页面读入缓冲池，调用方之后顺序访问这些页面时不用再等待磁盘
+     */
+    void prefetch(int pgno, int count);
+
     /**
      * 从零创建 Page 对象
      * @param path
@@ -31,6 +68,17 @@ public interface PageCache {
      * @return
      */
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, DEFAULT_EXTENT_SIZE);
+    }
+
+    /**
+     * 从零创建 Page 对象
+     * @param path
+     * @param memory
+     * @param extentSize 文件每次预分配的大小
+     * @return
+     */
+    public static PageCacheImpl create(String path, long memory, long extentSize) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -51,7 +99,7 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, (int)(memory/PAGE_SIZE), false, extentSize);
     }
 
     /**
@@ -61,6 +109,29 @@ public interface PageCache {
      * @return
      */
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, false);
+    }
+
+    /**
+     * .db文件已经存在，根据这个文件创建 Page 对象
+     * @param path
+     * @param memory
+     * @param mmap 是否以内存映射的方式读写页面
+     * @return
+     */
+    public static PageCacheImpl open(String path, long memory, boolean mmap) {
+        return open(path, memory, mmap, DEFAULT_EXTENT_SIZE);
+    }
+
+    /**
+     * .db文件已经存在，根据这个文件创建 Page 对象
+     * @param path
+     * @param memory
+     * @param mmap 是否以内存映射的方式读写页面
+     * @param extentSize 文件每次预分配的大小
+     * @return
+     */
+    public static PageCacheImpl open(String path, long memory, boolean mmap, long extentSize) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -77,6 +148,6 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, (int)(memory/PAGE_SIZE), mmap, extentSize);
     }
 }
@@ -9,10 +9,21 @@ import common.Error;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     /**
@@ -20,20 +31,123 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
+    /**
+     * 内存映射模式下，.db 文件按块映射，每块 64MB（页面大小的整数倍，页面不会跨块）
+     */
+    private static final long MAP_CHUNK_SIZE = 1L << 26;
+    /**
+     * 后台写回线程做检查点的间隔，单位：ms
+     */
+    private static final long CHECKPOINT_INTERVAL = 1000;
+    /**
+     * 顺序预读的窗口大小（页数），实际窗口不超过缓冲池的 1/4
+     */
+    private static final int READ_AHEAD_PAGES = 64;
+    /**
+     * 连续多少次向前访问相邻页面后，认为是顺序访问并开始预读
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 4;
+    /**
+     * 两次访问的页号相差不超过这个值时，都算作顺序访问（B+树的叶子节点之间可能夹杂着其他数据页）
+     */
+    private static final int SEQUENTIAL_GAP = 2;
+    /**
+     * 预读请求队列的长度，队列满时丢弃新的预读请求
+     */
+    private static final int PREFETCH_QUEUE = 16;
 
     private RandomAccessFile file;
+    /**
+     * 页面读写都使用带 offset 的定位读写（pread/pwrite），不依赖也不修改 fc 的 position，
+     * 所以多个线程可以同时对不同的页面发起 I/O，不需要额外的文件锁
+     */
     private FileChannel fc;
-    private Lock fileLock;
     /**
      * 记录了前打开的数据库文件有多少页,这个数字在数据库文件被打开时就会被计算，并在新建页面时自增
+     * 文件是按区段预分配的，这是逻辑上的页数（高水位），正常关闭时记录在第一页中，由 DataManager 打开时恢复
      */
     private AtomicInteger pageNumbers;
 
+    /**
+     * 文件每次增长的大小，页面大小的整数倍
+     * 新建页面超出文件末尾时一次性把文件扩展一个区段，而不是每页都扩展一次文件并同步文件元数据
+     */
+    private long extentSize;
+    /**
+     * 文件的实际长度，只在 extendLock 下增长
+     */
+    private volatile long fileLength;
+    private Lock extendLock;
+
+    /**
+     * 是否使用内存映射模式读写页面
+     * 映射模式只替换了页面和文件之间的 I/O：读入时把页面从映射区域拷贝到缓冲池的页帧，写回时再拷贝回映射区域，
+     * 不需要系统调用；缓冲池中的页面仍然是堆上的页帧，并不直接使用映射的内存。
+     * 这样页面的引用计数、脏页写回和先写日志的顺序在两种模式下完全一样
+     */
+    private boolean mmap;
+    /**
+     * 已经映射的块，第 i 块映射文件的 [i * MAP_CHUNK_SIZE, i * MAP_CHUNK_SIZE + capacity) 区域
+     * 只映射文件已有的部分，文件增长后按需重新映射所在的块；数组本身写时复制，读线程无需加锁
+     */
+    private volatile MappedByteBuffer[] chunks;
+    private Lock mapLock;
+
+    /**
+     * 缓冲池页面使用的页帧，被驱逐页面的页帧会被复用
+     */
+    private PageFramePool framePool;
+
+    /**
+     * 后台写回线程：驱逐和新建页面只把数据交给操作系统，不再逐页 fsync，
+     * 由这个线程定期把空闲的脏页按页号顺序写回，并且每一批只 fsync 一次
+     * 页面的修改都已经先写入了日志，崩溃后由恢复例程重做，所以页面本身不需要逐页同步落盘
+     */
+    private ScheduledExecutorService flusher;
+
+    /**
+     * 预读线程：顺序地把页面读入缓冲池，前台线程访问到正在预读的页面时会等待这次读取完成而不是重复读
+     */
+    private ThreadPoolExecutor prefetcher;
+    /**
+     * 检查点串行执行：一次检查点清除了脏标记的页面在它返回之前一定已经写回，
+     * 之后的检查点统计仍然是脏页的页面时不会漏掉正在写回途中的页面
+     */
+    private Lock checkpointLock;
+    private volatile LongSupplier lsnSource;
+    private volatile boolean closed;
+    private int readAheadWindow;
+    /**
+     * 顺序访问检测的状态，每个线程一份：不同会话交替访问时各自的顺序扫描都能被识别，也不会争用同一把锁
+     */
+    private ThreadLocal<ReadAheadState> readAheadState;
+
+    /**
+     * 一个线程的顺序访问检测状态
+     */
+    private static class ReadAheadState {
+        int lastPgno;
+        int sequentialRun;
+        int prefetchedUpTo;
+    }
+
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+        this(file, fileChannel, maxResource, false);
+    }
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, boolean mmap) {
+        this(file, fileChannel, maxResource, mmap, DEFAULT_EXTENT_SIZE);
+    }
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, boolean mmap, long extentSize) {
+        // 页面缓存作为缓冲池使用：引用释放后页面仍然驻留内存，直到缓存满时才按 CLOCK 算法驱逐
+        super(maxResource, true);
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
+        if(extentSize < PAGE_SIZE) {
+            Panic.panic(Error.InvalidExtentException);
+        }
         long length = 0;
         try {
             length = file.length();
@@ -42,8 +156,29 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int)(length / PAGE_SIZE));
+        this.extentSize = (extentSize + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+        this.fileLength = length;
+        this.extendLock = new ReentrantLock();
+        this.mmap = mmap;
+        this.chunks = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+        this.framePool = new PageFramePool(maxResource);
+        this.checkpointLock = new ReentrantLock();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "page-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+        this.prefetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                    Thread t = new Thread(r, "page-prefetcher");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.readAheadState = ThreadLocal.withInitial(ReadAheadState::new);
+        this.readAheadWindow = Math.max(1, Math.min(READ_AHEAD_PAGES, maxResource / 4));
     }
 
     /**
@@ -55,8 +190,9 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();
         Page pg = new PageImpl(pgno, initData, null);
-        // 新建的页面需要立刻写回
-        flush(pg);
+        // 新建的页面落在预分配的区段内，直接写入，不必等待落盘
+        ensureFileLength(pageOffset(pgno + 1));
+        write(pg.getPageNumber(), pg.getData());
         return pgno;
     }
 
@@ -68,44 +204,106 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public Page getPage(int pgno) throws Exception {
+        detectSequential(pgno);
         return get((long)pgno);
     }
 
+    /**
+     * 预读从 pgno 开始的 count 个页面，超出文件的部分会被忽略，一次最多预读一个窗口
+     */
+    @Override
+    public void prefetch(int pgno, int count) {
+        int from = Math.max(pgno, 1);
+        int to = Math.min(pgno + Math.min(count, readAheadWindow) - 1, pageNumbers.get());
+        if(from > to || closed) {
+            return;
+        }
+        prefetcher.execute(() -> {
+            for(int i = from; i <= to && !closed; i ++) {
+                try {
+                    release(get((long)i));
+                } catch(Exception e) {
+                    // 缓存被占满或正在关闭，放弃剩下的预读
+                    return;
+                }
+            }
+        });
+    }
+
+    /**
+     * 顺序访问检测：当前线程连续向前访问相邻的页面达到阈值后，预读之后的一个窗口，
+     * 访问推进到窗口的一半时再预读下一个窗口
+     */
+    private void detectSequential(int pgno) {
+        ReadAheadState st = readAheadState.get();
+        if(pgno == st.lastPgno) {
+            return;
+        }
+        if(pgno > st.lastPgno && pgno <= st.lastPgno + SEQUENTIAL_GAP) {
+            st.sequentialRun ++;
+        } else {
+            st.sequentialRun = 0;
+            st.prefetchedUpTo = 0;
+        }
+        st.lastPgno = pgno;
+        if(st.sequentialRun < SEQUENTIAL_THRESHOLD || pgno + readAheadWindow / 2 < st.prefetchedUpTo) {
+            return;
+        }
+        int from = Math.max(pgno + 1, st.prefetchedUpTo + 1);
+        int to = pgno + readAheadWindow;
+        st.prefetchedUpTo = to;
+        prefetch(from, to - from + 1);
+    }
+
     /**
      * 根据pageNumber从数据库文件中读取页数据，并包裹成Page
      */
-    @SuppressWarnings("AlibabaLockShouldWithTryFinally")
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
         long offset = pageOffset(pgno);
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        // 页面直接读入复用的页帧，映射模式下从映射区域拷贝
+        byte[] frame = framePool.acquire();
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        if(mmap) {
+            MappedByteBuffer chunk = mappedChunk(offset);
+            if(chunk != null) {
+                buf.put(pageView(chunk, offset));
+                return new PageImpl(pgno, frame, this);
+            }
+        }
         try {
-            fc.position(offset);
-            fc.read(buf);
+            // 一次定位读可能读不满，读到文件末尾为止
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
+        // 文件末尾之外的部分为 0，页帧中残留的旧数据需要清掉
+        Arrays.fill(frame, buf.position(), PAGE_SIZE, (byte)0);
+        return new PageImpl(pgno, frame, this);
     }
 
     /**
-     * 驱逐页面：根据页面是否是脏页面，来决定是否需要写回文件系统
+     * 驱逐页面：根据页面是否是脏页面，来决定是否需要写回文件系统，之后页帧回到页帧池
+     * 页面只会在缓存满被 CLOCK 选中、或缓存关闭时被驱逐，而不是在最后一个引用释放时，此时页面已经没有任何引用
      * @param pg
      */
     @Override
     protected void releaseForCache(Page pg) {
         if(pg.isDirty()) {
-            flush(pg);
+            write(pg.getPageNumber(), pg.getData());
             pg.setDirty(false);
         }
+        framePool.recycle(pg.getData());
     }
 
     /**
-     * 释放一个页面
+     * 释放一个页面：只减少引用计数，页面仍留在缓冲池中
      * @param page
      */
     @Override
@@ -113,48 +311,190 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         release((long)page.getPageNumber());
     }
 
+    @Override
+    public boolean isExclusive(Page pg) {
+        return references((long)pg.getPageNumber()) == 1;
+    }
+
     /**
-     * 将页面写回文件系统
+     * 将页面写回文件系统并等待落盘，页面不再是脏页
      * @param pg
      */
     @Override
     public void flushPage(Page pg) {
-        flush(pg);
+        pg.setDirty(false);
+        write(pg.getPageNumber(), pg.getData());
+        force();
+    }
+
+    @Override
+    public void setLsnSource(LongSupplier lsnSource) {
+        this.lsnSource = lsnSource;
+    }
+
+    @Override
+    public long currentLsn() {
+        LongSupplier source = lsnSource;
+        return source == null ? 0 : source.getAsLong();
+    }
+
+    /**
+     * 检查点：在分段锁内对未被引用的脏页做快照并清除脏标记，同时持有一个引用防止它们在写回期间被驱逐后又从磁盘读到旧数据
+     * 之后释放锁，按页号顺序写回快照，最后统一 fsync 一次
+     * 写回期间页面被其他线程修改时会重新被标记为脏，留给下一次检查点
+     * 写回之后统计仍然是脏页的页面（正在被引用的）的最小 recLsn，这些页面的修改还需要日志来重做
+     */
+    @Override
+    public long checkpoint() {
+        checkpointLock.lock();
+        try {
+            Map<Integer, byte[]> snapshots = new TreeMap<>();
+            List<Page> pinned = pinUnreferenced(pg -> {
+                if(!pg.isDirty()) {
+                    return false;
+                }
+                byte[] snapshot = framePool.acquire();
+                System.arraycopy(pg.getData(), 0, snapshot, 0, PAGE_SIZE);
+                snapshots.put(pg.getPageNumber(), snapshot);
+                pg.setDirty(false);
+                return true;
+            });
+            try {
+                for(Map.Entry<Integer, byte[]> e : snapshots.entrySet()) {
+                    write(e.getKey(), e.getValue());
+                    framePool.recycle(e.getValue());
+                }
+                if(!snapshots.isEmpty()) {
+                    force();
+                }
+            } finally {
+                for(Page pg : pinned) {
+                    release(pg);
+                }
+            }
+            return minRecLsn();
+        } finally {
+            checkpointLock.unlock();
+        }
     }
 
     /**
-     * 将页面写回文件系统
-     * @param pg 需要写回的页面
+     * 缓冲池中所有脏页的最小 recLsn
+     * 驱逐在分段锁下写回页面，遍历时页面要么还在缓冲池中，要么已经写回了文件系统
      */
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
+    private long minRecLsn() {
+        long[] min = {Long.MAX_VALUE};
+        forEachCached(pg -> {
+            if(pg.isDirty()) {
+                min[0] = Math.min(min[0], pg.getRecLsn());
+            }
+        });
+        return min[0];
+    }
+
+    /**
+     * 将页面数据交给文件系统，不等待落盘
+     * @param pgno 页号
+     * @param data 页面数据
+     */
+    private void write(int pgno, byte[] data) {
         long offset = pageOffset(pgno);
 
-        fileLock.lock();
+        if(mmap) {
+            MappedByteBuffer chunk = mappedChunk(offset);
+            if(chunk != null) {
+                pageView(chunk, offset).put(data);
+                return;
+            }
+            // 新建的页面在文件之外，先通过 fc 写入把文件撑大，之后再访问时会重新映射
+        }
+
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 等待已经写入的页面落盘，映射模式下映射区域需要单独 force
+     */
+    @Override
+    public void force() {
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
+            if(mmap) {
+                for(MappedByteBuffer chunk : chunks) {
+                    if(chunk != null) {
+                        chunk.force();
+                    }
+                }
+            }
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
+        }
+    }
+
+    /**
+     * 保证文件长度不小于 end，不够时按区段扩展文件
+     * 扩展的部分实际写入 0，让文件系统在这里一次性分配好磁盘块
+     */
+    private void ensureFileLength(long end) {
+        if(end <= fileLength) {
+            return;
+        }
+        extendLock.lock();
+        try {
+            long length = fileLength;
+            if(end <= length) {
+                return;
+            }
+            long newLength = roundToExtent(end);
+            ByteBuffer zeros = ByteBuffer.allocate((int)Math.min(extentSize, 1 << 20));
+            for(long pos = length; pos < newLength; ) {
+                zeros.clear();
+                zeros.limit((int)Math.min(zeros.capacity(), newLength - pos));
+                pos += fc.write(zeros, pos);
+            }
+            fileLength = newLength;
+        } catch(IOException e) {
+            Panic.panic(e);
         } finally {
-            fileLock.unlock();
+            extendLock.unlock();
         }
     }
 
+    /**
+     * 向上取整到区段的整数倍
+     */
+    private long roundToExtent(long length) {
+        return (length + extentSize - 1) / extentSize * extentSize;
+    }
+
     /**
      * 同一条数据是不允许跨页存储的，这一点会从后面的章节中体现。这意味着，单条数据的大小不能超过数据库页面的大小。
      * 如果数据超过了页面最大长度，截短文件为页面最大长度
+     * 逻辑页数设置为 maxPgno，文件保留到所在区段的末尾，之后新建页面仍然落在预分配的区域内
      * @param maxPgno
      */
     @Override
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        long size = roundToExtent(pageOffset(maxPgno + 1));
+        extendLock.lock();
+        mapLock.lock();
         try {
+            // 丢弃所有映射，截断后再访问被截掉的区域会出错
+            chunks = new MappedByteBuffer[0];
             file.setLength(size);
+            fileLength = size;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+            extendLock.unlock();
         }
         pageNumbers.set(maxPgno);
     }
@@ -164,7 +504,20 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public void close() {
+        closed = true;
+        // 不能中断预读线程：FileChannel 上的读被中断会关闭整个 channel
+        prefetcher.shutdown();
+        flusher.shutdown();
+        try {
+            prefetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
         super.close();
+        force();
+        framePool.clear();
+        chunks = new MappedByteBuffer[0];
         try {
             fc.close();
             file.close();
@@ -188,7 +541,54 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      * @return 页面起始地址,单位：byte
      */
     private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+        return (long)(pgno-1) * PAGE_SIZE;
+    }
+
+    /**
+     * 获取 offset 处页面在映射区域上的视图，position 指向页面起始，limit 指向页面结尾
+     */
+    private static ByteBuffer pageView(MappedByteBuffer chunk, long offset) {
+        int inChunk = (int)(offset % MAP_CHUNK_SIZE);
+        ByteBuffer view = chunk.duplicate();
+        view.position(inChunk);
+        view.limit(inChunk + PAGE_SIZE);
+        return view;
+    }
+
+    /**
+     * 获取 offset 处页面所在的映射块
+     * 所在的块尚未映射、或映射的范围不足以覆盖该页面时（文件增长了），重新映射该块
+     * @return 页面超出了文件的实际大小时返回 null
+     */
+    private MappedByteBuffer mappedChunk(long offset) {
+        int index = (int)(offset / MAP_CHUNK_SIZE);
+        int needed = (int)(offset % MAP_CHUNK_SIZE) + PAGE_SIZE;
+        MappedByteBuffer[] cs = chunks;
+        if(index < cs.length && cs[index] != null && cs[index].capacity() >= needed) {
+            return cs[index];
+        }
+        mapLock.lock();
+        try {
+            cs = chunks;
+            if(index < cs.length && cs[index] != null && cs[index].capacity() >= needed) {
+                return cs[index];
+            }
+            long start = index * MAP_CHUNK_SIZE;
+            long size = Math.min(MAP_CHUNK_SIZE, fc.size() - start);
+            if(size < needed) {
+                return null;
+            }
+            MappedByteBuffer chunk = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+            MappedByteBuffer[] newChunks = Arrays.copyOf(cs, Math.max(cs.length, index + 1));
+            newChunks[index] = chunk;
+            chunks = newChunks;
+            return chunk;
+        } catch(IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            mapLock.unlock();
+        }
     }
 
 }
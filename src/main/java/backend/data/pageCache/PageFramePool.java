@@ -0,0 +1,71 @@
+package backend.data.pageCache;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 页帧池：缓冲池中页面使用的 PAGE_SIZE 大小的字节数组
+ * 页面被驱逐后它的页帧回到池中，下一次从磁盘读页面时直接复用，稳定运行时读页面不再产生新的 8K 对象
+ * 池的容量和缓冲池的页面数（由 -mem 决定）一致，超出容量归还的页帧直接丢弃
+ */
+class PageFramePool {
+    private final int capacity;
+    private final byte[][] frames;
+    private int size;
+    private final Lock lock;
+
+    PageFramePool(int capacity) {
+        this.capacity = capacity;
+        this.frames = new byte[capacity][];
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * 取出一个页帧，池为空时新分配一个
+     * 复用的页帧里残留着之前页面的数据，调用方需要整页覆盖
+     */
+    byte[] acquire() {
+        lock.lock();
+        try {
+            if(size > 0) {
+                byte[] frame = frames[--size];
+                frames[size] = null;
+                return frame;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new byte[PageCache.PAGE_SIZE];
+    }
+
+    /**
+     * 归还一个页帧，调用方之后不能再访问它
+     */
+    void recycle(byte[] frame) {
+        if(frame.length != PageCache.PAGE_SIZE) {
+            return;
+        }
+        lock.lock();
+        try {
+            if(size < capacity) {
+                frames[size++] = frame;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 清空页帧池
+     */
+    void clear() {
+        lock.lock();
+        try {
+            Arrays.fill(frames, 0, size, null);
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
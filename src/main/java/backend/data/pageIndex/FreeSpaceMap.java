@@ -0,0 +1,157 @@
+package backend.data.pageIndex;
+
+import backend.utils.Panic;
+import common.Error;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * 空闲空间表（.fsm 文件），PageIndex 在磁盘上的持久化形式
+ * 数据库正常关闭时把每一页的空闲空间写入这个文件，下次正常打开时直接读入 PageIndex，不需要读取所有页面
+ * 上一次没有正常关闭（第一页校验失败）时，文件内容可能已经过期，此时丢弃它，由 DataManager 扫描所有页面重建
+ *
+ * 文件结构:
+ * [PageCount] [Checksum] [FreeSpace2] [FreeSpace3] ... [FreeSpaceN]
+ * PageCount: 4字节 保存时数据库的页数
+ * Checksum: 4字节 之后所有内容的 CRC32
+ * FreeSpace: 2字节 第 2~N 页的空闲空间，第一页不参与插入，不记录
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+
+    private static final int OF_PAGES = 0;
+    private static final int OF_CHECKSUM = OF_PAGES + 4;
+    private static final int OF_DATA = OF_CHECKSUM + 4;
+    private static final int LEN_FREE_SPACE = 2;
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+
+    FreeSpaceMap(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+    }
+
+    public static FreeSpaceMap create(String path) {
+        File f = new File(path+FSM_SUFFIX);
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return openFile(f);
+    }
+
+    /**
+     * 旧的数据库没有 .fsm 文件，此时新建一个空文件，启动时按照文件无效处理
+     */
+    public static FreeSpaceMap open(String path) {
+        File f = new File(path+FSM_SUFFIX);
+        try {
+            f.createNewFile();
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return openFile(f);
+    }
+
+    private static FreeSpaceMap openFile(File f) {
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+
+        FileChannel fc = null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+            fc = raf.getChannel();
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        return new FreeSpaceMap(raf, fc);
+    }
+
+    /**
+     * 把文件中记录的空闲空间装入 pIndex
+     * @param pIndex
+     * @param pageNumber 当前数据库的页数
+     * @return 文件和当前数据库的页数不一致或者校验失败时返回 false，此时 pIndex 没有被修改
+     */
+    public boolean load(PageIndex pIndex, int pageNumber) {
+        long size = OF_DATA + (long)(pageNumber - 1) * LEN_FREE_SPACE;
+        ByteBuffer buf = null;
+        try {
+            if(fc.size() != size) {
+                return false;
+            }
+            buf = ByteBuffer.allocate((int)size);
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, buf.position()) < 0) {
+                    return false;
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        if(buf.getInt(OF_PAGES) != pageNumber || buf.getInt(OF_CHECKSUM) != checksum(buf)) {
+            return false;
+        }
+        for(int pgno = 2; pgno <= pageNumber; pgno ++) {
+            pIndex.add(pgno, buf.getShort(freeSpaceOffset(pgno)));
+        }
+        return true;
+    }
+
+    /**
+     * 把 pIndex 中所有页面的空闲空间写入文件，只在没有插入进行时（关闭时）调用
+     * @param pIndex
+     * @param pageNumber 当前数据库的页数
+     */
+    public void save(PageIndex pIndex, int pageNumber) {
+        int size = OF_DATA + (pageNumber - 1) * LEN_FREE_SPACE;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(OF_PAGES, pageNumber);
+        for(PageInfo pi : pIndex.pages()) {
+            if(pi.pgno >= 2 && pi.pgno <= pageNumber) {
+                buf.putShort(freeSpaceOffset(pi.pgno), (short)pi.freeSpace);
+            }
+        }
+        buf.putInt(OF_CHECKSUM, checksum(buf));
+        try {
+            while(buf.hasRemaining()) {
+                fc.write(buf, buf.position());
+            }
+            fc.truncate(size);
+            fc.force(false);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    public void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static int freeSpaceOffset(int pgno) {
+        return OF_DATA + (pgno - 2) * LEN_FREE_SPACE;
+    }
+
+    private static int checksum(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), OF_DATA, buf.capacity() - OF_DATA);
+        return (int)crc.getValue();
+    }
+}
@@ -3,7 +3,12 @@ package backend.data.pageIndex;
 import backend.data.pageCache.PageCache;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,6 +25,13 @@ import java.util.concurrent.locks.ReentrantLock;
  * MYDB 用一个比较粗略的算法实现了页面索引，将一页的空间划分成了 40 个区间。
  * 在启动时，就会遍历所有的页面信息，获取页面的空闲空间，安排到这 40 个区间中。
  * insert 在请求一个页时，会首先将所需的空间向上取整，映射到某一个区间，随后取出这个区间的任何一页，都可以满足需求。
+ *
+ * 每一页在索引中只有一条记录，记录的是这一页还没有被预留的空间。
+ * 选中页面时只预留所需的空间，剩余的空间仍然留在这一页的记录中，多个线程可以同时向同一页插入（由页面锁串行化页内的写入），
+ * 并发插入时不会因为页面都被别的线程取走而新建大量半空的页面。
+ * 释放数据、归还预留的空间时加到这一页的记录上，并把它移到新的区间，释放出来的空间可以被同样大小的插入再次使用。
+ * 空闲空间不足一个区间的页面不在任何区间中，选不出来，但仍然保留记录，之后释放的空间会加上去。
+ * 所有操作在一把锁内只修改几个字段，不读页面，临界区很短。
  */
 public class PageIndex {
     // 将一页划成40个区间
@@ -27,59 +39,141 @@ public class PageIndex {
     // 每个区间0.2kb
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
+    /**
+     * 页号 -> 这一页的记录
+     */
+    private Map<Integer, PageInfo> pages;
+    /**
+     * 每个区间中的页面，按加入区间的顺序排列；第 0 个区间不会被选中，不放页面
+     */
+    private Set<PageInfo>[] lists;
     private Lock lock;
-    private List<PageInfo>[] lists;
 
-    @SuppressWarnings("unchecked")
+    @SuppressWarnings({"unchecked", "rawtypes"})
     public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
+        pages = new HashMap<>();
+        lists = new Set[INTERVALS_NO+1];
         for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new LinkedHashSet<>();
         }
+        lock = new ReentrantLock();
+    }
+
+    private static int interval(int freeSpace) {
+        return freeSpace / THRESHOLD;
     }
 
     /**
-     * 将页面信息插入对应区间list
+     * 修改一页的空闲空间，并把它移到对应的区间，调用方持有 lock
+     */
+    private void setFreeSpace(PageInfo pi, int freeSpace) {
+        int from = interval(pi.freeSpace);
+        int to = interval(freeSpace);
+        pi.freeSpace = freeSpace;
+        if(from != to) {
+            if(from > 0) {
+                lists[from].remove(pi);
+            }
+            if(to > 0) {
+                lists[to].add(pi);
+            }
+        }
+    }
+
+    /**
+     * 增加一页的空闲空间，第一次出现的页面新建记录
+     * 也用于归还预留了但没有用上的空间，以及释放数据后增加的空间
      * @param pgno
      * @param freeSpace
      */
     public void add(int pgno, int freeSpace) {
         lock.lock();
         try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
+            PageInfo pi = pages.get(pgno);
+            if(pi == null) {
+                pi = new PageInfo(pgno, 0);
+                pages.put(pgno, pi);
+            }
+            setFreeSpace(pi, pi.freeSpace + freeSpace);
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 从 PageIndex 中获取页面：计算区间，寻找符合该空间的页面
-     * @param spaceSize
+     * 获取 PageIndex 中每个页面的空闲空间，用于持久化到空闲空间表
      * @return
      */
+    public List<PageInfo> pages() {
+        lock.lock();
+        try {
+            List<PageInfo> result = new ArrayList<>(pages.size());
+            for(PageInfo pi : pages.values()) {
+                result.add(new PageInfo(pi.pgno, pi.freeSpace));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从 PageIndex 中获取页面：计算区间，寻找符合该空间的页面，并在这一页上预留 spaceSize 的空间
+     * 剩余的空间留在这一页的记录中，插入完成后不需要再把页面放回；插入失败时需要用 add 归还预留的空间
+     * @param spaceSize
+     * @return 预留的页面和空间大小，没有合适的页面时返回 null
+     */
     public PageInfo select(int spaceSize) {
         lock.lock();
         try {
-            int number = spaceSize / THRESHOLD;
-            if(number < INTERVALS_NO) {
-                // 向上取整
-                number ++;
+            PageInfo pi = find(spaceSize);
+            if(pi == null) {
+                return null;
             }
-            while(number <= INTERVALS_NO) {
-                if(lists[number].size() == 0) {
-                    number ++;
-                    continue;
-                }
-                // 找到了可以放下该数据的页面
-                //被选择的页，会直接从 PageIndex 中移除，这意味着，同一个页面是不允许并发写的。
-                //在上层模块使用完这个页面后，需要将其重新插入 PageIndex：
-                return lists[number].remove(0);
+            setFreeSpace(pi, pi.freeSpace - spaceSize);
+            return new PageInfo(pi.pgno, spaceSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 和 select 一样寻找至少有 spaceSize 空闲空间的页面，但预留这一页所有的空闲空间，用于批量插入时尽量把数据放进同一页
+     * 没有用完的空间需要用 add 归还
+     * @param spaceSize
+     * @return 预留的页面和空间大小，没有合适的页面时返回 null
+     */
+    public PageInfo take(int spaceSize) {
+        lock.lock();
+        try {
+            PageInfo pi = find(spaceSize);
+            if(pi == null) {
+                return null;
             }
-            return null;
+            PageInfo taken = new PageInfo(pi.pgno, pi.freeSpace);
+            setFreeSpace(pi, 0);
+            return taken;
         } finally {
             lock.unlock();
         }
     }
+
+    /**
+     * 在空间向上取整后的区间及之后的区间中找一页，调用方持有 lock
+     */
+    private PageInfo find(int spaceSize) {
+        int number = interval(spaceSize);
+        if(number < INTERVALS_NO) {
+            // 向上取整
+            number ++;
+        }
+        while(number <= INTERVALS_NO) {
+            Iterator<PageInfo> it = lists[number].iterator();
+            if(it.hasNext()) {
+                return it.next();
+            }
+            number ++;
+        }
+        return null;
+    }
 }
@@ -5,6 +5,7 @@ import backend.data.DataManager;
 import backend.data.dataItem.DataItem;
 import backend.transaction.TransactionManagerImpl;
 import backend.utils.Parser;
+import backend.utils.Types;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -29,13 +30,19 @@ import java.util.concurrent.locks.ReentrantLock;
  * 唯一的缺点仅仅是，无法直接通过父节点找到 v 了，只能间接地通过 u 获取到 v。
  */
 public class BPlusTree {
+    /**
+     * 范围查找沿兄弟节点走到提示过的页面之外时，从兄弟节点所在的页面开始预读的页数
+     * 叶子节点分裂时新节点通常分配在靠后的页面上，叶子链大体是向前推进的
+     */
+    private static final int LEAF_PREFETCH_PAGES = 16;
+
     DataManager dm;
     long bootUid;
     /**
      * 由于 B+ 树在插入删除时，会动态调整，根节点不是固定节点，于是设置一个 bootDataItem
-     * 该 DataItem 中存储了根节点的 UID
+     * 该 DataItem 中存储了根节点的 UID，bootUid 就是它的 UID
+     * bootDataItem 每次使用时读取、用完释放，而不是一直持有：一直被引用的页面不会被检查点写回，会让旧日志无法删除
      */
-    DataItem bootDataItem;
     Lock bootLock;
 
     public static long create(DataManager dm) throws Exception {
@@ -45,21 +52,30 @@ public class BPlusTree {
     }
 
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
-        DataItem bootDataItem = dm.read(bootUid);
-        assert bootDataItem != null;
         BPlusTree t = new BPlusTree();
         t.bootUid = bootUid;
         t.dm = dm;
-        t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.bootDataItem().release();
         return t;
     }
 
-    private long rootUid() {
+    private DataItem bootDataItem() throws Exception {
+        DataItem bootDataItem = dm.read(bootUid);
+        assert bootDataItem != null;
+        return bootDataItem;
+    }
+
+    private long rootUid() throws Exception {
         bootLock.lock();
         try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            DataItem bootDataItem = bootDataItem();
+            try {
+                SubArray sa = bootDataItem.data();
+                return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            } finally {
+                bootDataItem.release();
+            }
         } finally {
             bootLock.unlock();
         }
@@ -70,10 +86,15 @@ public class BPlusTree {
         try {
             byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            DataItem bootDataItem = bootDataItem();
+            try {
+                bootDataItem.before();
+                SubArray diRaw = bootDataItem.data();
+                System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+                bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            } finally {
+                bootDataItem.release();
+            }
         } finally {
             bootLock.unlock();
         }
@@ -112,6 +133,8 @@ public class BPlusTree {
         long rootUid = rootUid();
         long leafUid = searchLeaf(rootUid, leftKey);
         List<Long> uids = new ArrayList<>();
+        // 已经提示过预读的页号范围 [hintFrom, hintTo]
+        int hintFrom = 0, hintTo = -1;
         while(true) {
             Node leaf = Node.loadNode(this, leafUid);
             Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
@@ -121,6 +144,12 @@ public class BPlusTree {
                 break;
             } else {
                 leafUid = res.siblingUid;
+                int pgno = Types.uidToPgno(leafUid);
+                if(pgno < hintFrom || pgno > hintTo) {
+                    dm.prefetch(leafUid, LEAF_PREFETCH_PAGES);
+                    hintFrom = pgno;
+                    hintTo = pgno + LEAF_PREFETCH_PAGES - 1;
+                }
             }
         }
         return uids;
@@ -176,6 +205,5 @@ public class BPlusTree {
     }
 
     public void close() {
-        bootDataItem.release();
     }
 }
@@ -10,4 +10,8 @@ public class Begin {
      * 默认为 READ COMMITTED
      */
     public boolean isRepeatableRead;
+    /**
+     * 只读事务，由服务器为单条查询语句开启，SQL 中没有对应的语法
+     */
+    public boolean isReadOnly;
 }
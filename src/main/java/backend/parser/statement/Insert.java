@@ -4,6 +4,8 @@ package backend.parser.statement;
  * <insert statement>
  *     insert into <table name> values <value list>
  *         insert into student values 5 "Zhang Yuanjia" 22
+ *     一次插入多行时依次列出每一行的值
+ *         insert into student values 5 "Zhang Yuanjia" 22 6 "Li Ming" 23
  */
 public class Insert {
     public String tableName;
@@ -57,7 +57,10 @@ public class Executor {
         Exception e = null;
         if(xid == 0) {
             tmpTransaction = true;
-            BeginRes r = tbm.begin(new Begin());
+            Begin begin = new Begin();
+            // 单条查询语句只读，不需要分配 XID
+            begin.isReadOnly = Show.class.isInstance(stat) || Select.class.isInstance(stat);
+            BeginRes r = tbm.begin(begin);
             xid = r.xid;
         }
         try {
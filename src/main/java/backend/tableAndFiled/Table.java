@@ -159,25 +159,40 @@ public class Table {
         return sb.toString();
     }
 
+    /**
+     * 插入一行或多行，values 依次是每一行所有字段的值
+     * 所有行一起交给 VM 批量插入，之后再逐行更新索引
+     * @param xid
+     * @param insert
+     * @throws Exception
+     */
     public void insert(long xid, Insert insert) throws Exception {
-        Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-        for (Field field : fields) {
-            if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+        if(insert.values.length == 0 || insert.values.length % fields.size() != 0) {
+            throw Error.InvalidValuesException;
+        }
+        int rows = insert.values.length / fields.size();
+        List<Map<String, Object>> entries = new ArrayList<>(rows);
+        List<byte[]> raws = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            Map<String, Object> entry = string2Entry(insert.values, i * fields.size());
+            entries.add(entry);
+            raws.add(entry2Raw(entry));
+        }
+        long[] uids = ((TableManagerImpl)tbm).vm.insertBatch(xid, raws);
+        for (int i = 0; i < rows; i++) {
+            for (Field field : fields) {
+                if(field.isIndexed()) {
+                    field.insert(entries.get(i).get(field.fieldName), uids[i]);
+                }
             }
         }
     }
 
-    private Map<String, Object> string2Entry(String[] values) throws Exception {
-        if(values.length != fields.size()) {
-            throw Error.InvalidValuesException;
-        }
+    private Map<String, Object> string2Entry(String[] values, int from) throws Exception {
         Map<String, Object> entry = new HashMap<>();
         for (int i = 0; i < fields.size(); i++) {
             Field f = fields.get(i);
-            Object v = f.string2Value(values[i]);
+            Object v = f.string2Value(values[from + i]);
             entry.put(f.fieldName, v);
         }
         return entry;
@@ -56,7 +56,7 @@ public class TableManagerImpl implements TableManager {
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0;
-        res.xid = vm.begin(level);
+        res.xid = begin.isReadOnly ? vm.beginReadOnly(level) : vm.begin(level);
         res.result = "begin".getBytes();
         return res;
     }
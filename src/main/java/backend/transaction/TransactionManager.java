@@ -23,6 +23,7 @@ public interface TransactionManager {
     boolean isActive(long xid); //查询一个事务的状态是否早正在进行的状态
     boolean isCommitted(long xid); //查询一个事务的状态是否已经提交
     boolean isAborted(long xid); //查询一个事务的状态是否已取消
+    void abortUnfinished(); //崩溃恢复之后，把上一次运行中没有结束的事务标记为已取消
     void close(); //关闭TM
 
     /**
@@ -1,5 +1,6 @@
 package backend.transaction;
 
+import backend.common.primitive.LongArrayList;
 import backend.utils.Panic;
 import backend.utils.Parser;
 import common.Error;
@@ -8,6 +9,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -19,8 +21,10 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class TransactionManagerImpl implements TransactionManager{
 
-    // XID文件头长度：记录XID文件管理事务的个数
+    // XID文件头长度：记录XID文件管理事务的个数，即已经预留的 XID 的个数
     static final int LEN_XID_HEADER_LENGTH = 8;
+    // 每次预留的 XID 个数，预留时才写文件头，begin() 不写文件
+    private static final int XID_RESERVE_COUNT = 1024;
     // 每个事务的占用长度：分配一个字节空间，用于保存其状态
     private static final int XID_FIELD_SIZE = 1;
 
@@ -39,14 +43,23 @@ public class TransactionManagerImpl implements TransactionManager{
     private RandomAccessFile file;
     //文件读写都采用 NIO 方式的 FileChannel
     private FileChannel fc;
-    private long xidCounter;
+    // 最后分配出去的 XID
+    private AtomicLong xidCounter;
+    // 已经预留的最大 XID，文件中 reserved 之前的状态字节都已存在
+    private volatile long reserved;
+    // 打开时文件中预留的最大 XID，之前的正在进行的事务都属于上一次运行
+    private long openReserved;
     private Lock counterLock;
+    // XID 文件中事务状态的内存副本，查询状态不再读文件
+    private XidStatusTable statusTable;
 
     TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        statusTable = new XidStatusTable();
         checkXIDCounter();
+        loadStatus();
     }
 
     /**
@@ -72,11 +85,52 @@ public class TransactionManagerImpl implements TransactionManager{
             Panic.panic(e);
         }
         //获取管理事务的个数
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLen) {
+        this.reserved = Parser.parseLong(buf.array());
+        this.openReserved = reserved;
+        // 上一次运行预留但没有用完的 XID 不再分配
+        this.xidCounter = new AtomicLong(reserved);
+        long end = getXidPosition(reserved + 1);
+        if(end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        // 预留时先扩展文件再写文件头，文件头没写成功时多出来的部分丢弃
+        if(end < fileLen) {
+            try {
+                fc.truncate(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /**
+     * 把 XID 文件中所有事务的状态读入内存
+     */
+    private void loadStatus() {
+        statusTable.ensureCapacity(reserved);
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long xid = 1;
+        while(xid <= reserved) {
+            buf.clear();
+            int len = (int)Math.min(buf.capacity(), reserved - xid + 1);
+            buf.limit(len);
+            try {
+                while(buf.hasRemaining()) {
+                    if(fc.read(buf, getXidPosition(xid) + buf.position()) < 0) {
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            byte[] raw = buf.array();
+            for(int i = 0; i < len; i ++) {
+                if(raw[i] != FIELD_TRAN_ACTIVE) {
+                    statusTable.set(xid + i, raw[i]);
+                }
+            }
+            xid += len;
+        }
     }
 
     // 根据事务xid取得其在xid文件中对应的位置
@@ -92,9 +146,9 @@ public class TransactionManagerImpl implements TransactionManager{
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
         // 将缓存中的状态写入通道对应位置上
+        // 多个事务会同时提交，使用指定位置的写入，不依赖通道共享的 position
         try {
-            fc.position(offset);
-            fc.write(buf);
+            fc.write(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -104,16 +158,39 @@ public class TransactionManagerImpl implements TransactionManager{
         } catch (IOException e) {
             Panic.panic(e);
         }
+        // 状态落盘之后才对其他事务可见
+        statusTable.set(xid, status);
     }
 
-    // 将XID加一，并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter ++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    /**
+     * 再预留 XID_RESERVE_COUNT 个 XID，并更新XID Header
+     * 先在文件末尾写入这些事务的状态（正在进行），落盘后再更新文件头，
+     * 这样 begin() 分配预留的 XID 时不需要写文件。
+     * 调用方持有 counterLock
+     */
+    private void reserveXID() {
+        long next = reserved + XID_RESERVE_COUNT;
+        ByteBuffer status = ByteBuffer.allocate(XID_RESERVE_COUNT * XID_FIELD_SIZE);
+        try {
+            long offset = getXidPosition(reserved + 1);
+            while(status.hasRemaining()) {
+                fc.write(status, offset + status.position());
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        writeHeader(next);
+        statusTable.ensureCapacity(next);
+        reserved = next;
+    }
+
+    // 更新XID Header
+    private void writeHeader(long counter) {
+        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(counter));
         // 将缓存中的数据写入通道
         try {
-            fc.position(0);
-            fc.write(buf);
+            fc.write(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -130,13 +207,16 @@ public class TransactionManagerImpl implements TransactionManager{
     // 开始一个事务，并返回XID
     @Override
     public long begin() {
+        long xid = xidCounter.incrementAndGet();
+        // 预留的 XID 的状态已经是正在进行，并且已经落盘，直接返回
+        if(xid <= reserved) {
+            return xid;
+        }
         counterLock.lock();
         try {
-            long xid = xidCounter + 1;
-            //设置 xid 事务的状态位为正在进行
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            //xidCounter 自增，并更新文件头（将管理的事务个数更新）
-            incrXIDCounter();
+            while(xid > reserved) {
+                reserveXID();
+            }
             return xid;
         } finally {
             counterLock.unlock();
@@ -155,17 +235,9 @@ public class TransactionManagerImpl implements TransactionManager{
         updateXID(xid, FIELD_TRAN_ABORTED);
     }
 
-    // 检测XID事务是否处于status状态
+    // 检测XID事务是否处于status状态，只读内存中的状态表
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return buf.array()[0] == status;
+        return statusTable.get(xid) == status;
     }
 
     @Override
@@ -192,8 +264,48 @@ public class TransactionManagerImpl implements TransactionManager{
         return checkXID(xid, FIELD_TRAN_ABORTED);
     }
 
+    /**
+     * 把上一次运行中没有结束的事务都标记为已撤销
+     * 包括崩溃时正在进行的事务，以及预留了但还没有分配出去的 XID。
+     * 所有状态写入之后只刷一次盘
+     */
+    @Override
+    public void abortUnfinished() {
+        LongArrayList unfinished = new LongArrayList();
+        ByteBuffer buf = ByteBuffer.wrap(new byte[]{FIELD_TRAN_ABORTED});
+        try {
+            for(long xid = 1; xid <= openReserved; xid ++) {
+                if(statusTable.get(xid) == FIELD_TRAN_ACTIVE) {
+                    buf.clear();
+                    fc.write(buf, getXidPosition(xid));
+                    unfinished.add(xid);
+                }
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        for(int i = 0; i < unfinished.size(); i ++) {
+            statusTable.set(unfinished.get(i), FIELD_TRAN_ABORTED);
+        }
+    }
+
+    /**
+     * 正常关闭时只保留分配出去的 XID，预留但没有用到的部分从文件中去掉
+     */
     @Override
     public void close() {
+        counterLock.lock();
+        try {
+            long last = xidCounter.get();
+            writeHeader(last);
+            fc.truncate(getXidPosition(last + 1));
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            counterLock.unlock();
+        }
         try {
             fc.close();
             file.close();
@@ -0,0 +1,79 @@
+package backend.transaction;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 常驻内存的事务状态表，是 XID 文件中状态字节的副本
+ * 每个事务占 2 位，一个 long 存 32 个事务；表按块分配，事务变多时只追加新块，已有的块不复制。
+ * 读是一次 volatile 读，不加锁；写用 CAS，只改对应的 2 位。
+ */
+class XidStatusTable {
+    private static final int BITS_PER_XID = 2;
+    private static final int XIDS_PER_LONG = Long.SIZE / BITS_PER_XID;
+    private static final long STATUS_MASK = (1L << BITS_PER_XID) - 1;
+
+    // 每块 2^16 个事务，即 2048 个 long，16KB
+    private static final int CHUNK_SHIFT = 16;
+    private static final int XIDS_PER_CHUNK = 1 << CHUNK_SHIFT;
+    private static final int LONGS_PER_CHUNK = XIDS_PER_CHUNK / XIDS_PER_LONG;
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    /**
+     * 保证 xid 及之前的事务在表中都有位置，新位置的状态为 0，即正在进行
+     */
+    void ensureCapacity(long xid) {
+        int need = (int)(xid >>> CHUNK_SHIFT) + 1;
+        if(need <= chunks.length) {
+            return;
+        }
+        synchronized(this) {
+            grow(need);
+        }
+    }
+
+    private void grow(int need) {
+        AtomicLongArray[] cur = chunks;
+        if(need <= cur.length) {
+            return;
+        }
+        AtomicLongArray[] next = Arrays.copyOf(cur, need);
+        for(int i = cur.length; i < need; i ++) {
+            next[i] = new AtomicLongArray(LONGS_PER_CHUNK);
+        }
+        chunks = next;
+    }
+
+    /**
+     * 事务的状态；表中没有的事务返回 0
+     */
+    byte get(long xid) {
+        AtomicLongArray[] cur = chunks;
+        int chunk = (int)(xid >>> CHUNK_SHIFT);
+        if(chunk >= cur.length) {
+            return 0;
+        }
+        int i = (int)(xid & (XIDS_PER_CHUNK - 1));
+        long word = cur[chunk].get(i / XIDS_PER_LONG);
+        return (byte)((word >>> shift(i)) & STATUS_MASK);
+    }
+
+    void set(long xid, byte status) {
+        ensureCapacity(xid);
+        AtomicLongArray arr = chunks[(int)(xid >>> CHUNK_SHIFT)];
+        int i = (int)(xid & (XIDS_PER_CHUNK - 1));
+        int index = i / XIDS_PER_LONG;
+        int shift = shift(i);
+        long bits = ((long)status & STATUS_MASK) << shift;
+        long mask = STATUS_MASK << shift;
+        long word;
+        do {
+            word = arr.get(index);
+        } while(!arr.compareAndSet(index, word, (word & ~mask) | bits));
+    }
+
+    private static int shift(int i) {
+        return (i % XIDS_PER_LONG) * BITS_PER_XID;
+    }
+}
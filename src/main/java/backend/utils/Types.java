@@ -7,9 +7,20 @@ package backend.utils;
  * @createTime 2022年07月29日 16:34:00
  */
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    /**
+     * UID：高 32 位是页号，低 32 位是页内的槽字（[Generation 2][Slot 2]）
+     */
+    public static long addressToUid(int pgno, int slotWord) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = slotWord & 0xFFFFFFFFL;
         return u0 << 32 | u1;
     }
+
+    public static int uidToPgno(long uid) {
+        return (int)(uid >>> 32);
+    }
+
+    public static int uidToSlotWord(long uid) {
+        return (int)uid;
+    }
 }
@@ -0,0 +1,73 @@
+package backend.version;
+
+import backend.transaction.TransactionManager;
+
+import java.util.Arrays;
+
+/**
+ * 正在进行的事务的集合，供新事务取快照
+ * 集合保存为一个有序且不可变的 XID 数组，每次变化时复制出新的数组再整体替换（写时复制）；
+ * 取快照只需要读一次 volatile 引用，不加锁，同一时刻开始的事务共享同一个数组。
+ * 正在进行的事务通常只有几百个，复制的代价很小
+ */
+class ActiveSet {
+    /**
+     * 某一时刻的集合：正在进行的事务和最后分配的 XID
+     */
+    static final class State {
+        /**
+         * 正在进行的事务的 XID，从小到大排列
+         */
+        final long[] xids;
+        /**
+         * 最后分配的 XID，比它大的事务都在这一时刻之后开始
+         */
+        final long lastXid;
+
+        State(long[] xids, long lastXid) {
+            this.xids = xids;
+            this.lastXid = lastXid;
+        }
+    }
+
+    private volatile State state = new State(new long[0], 0);
+
+    /**
+     * 当前的集合
+     */
+    State current() {
+        return state;
+    }
+
+    /**
+     * 向 TM 申请 XID 并加入集合
+     * 分配 XID 和加入集合在同一把锁内完成，XID 较小的事务一定先出现在集合中，
+     * 否则 XID 较大的事务取快照时可能漏掉它，之后看到它提交的数据
+     * @return 加入之后的集合，lastXid 就是新事务的 XID
+     */
+    synchronized State begin(TransactionManager tm) {
+        State cur = state;
+        long xid = tm.begin();
+        long[] xids = Arrays.copyOf(cur.xids, cur.xids.length + 1);
+        xids[cur.xids.length] = xid;
+        State next = new State(xids, xid);
+        state = next;
+        return next;
+    }
+
+    /**
+     * 事务提交或回滚之后移出集合
+     * 要在 TM 修改状态之后调用，这样新事务要么在快照中看到它，要么看到它的最终状态
+     */
+    synchronized void remove(long xid) {
+        State cur = state;
+        int i = Arrays.binarySearch(cur.xids, xid);
+        if(i < 0) {
+            return;
+        }
+        long[] xids = new long[cur.xids.length - 1];
+        System.arraycopy(cur.xids, 0, xids, 0, i);
+        System.arraycopy(cur.xids, i + 1, xids, i, xids.length - i);
+        state = new State(xids, cur.lastXid);
+    }
+}
@@ -2,6 +2,8 @@ package backend.version;
 
 import backend.common.SubArray;
 import backend.data.dataItem.DataItem;
+import backend.transaction.TransactionManager;
+import backend.transaction.TransactionManagerImpl;
 import backend.utils.Parser;
 import com.google.common.primitives.Bytes;
 
@@ -21,12 +23,22 @@ import java.util.Arrays;
  * XMAX 这个变量，也就解释了为什么 DM 层不提供删除操作，当想删除一个版本时，只需要设置其 XMAX，
  * 这样，这个版本对每一个 XMAX 之后的事务都是不可见的，也就等价于删除了。
  * DATA ：这条记录持有的数据
+ *
+ * XMIN 和 XMAX 的最高字节用作提示位，事务号只用低 56 位：
+ * 第一次确认创建/删除事务已提交或已回滚时，把结果记在提示位上，之后判断可见性就不用再查询 TM。
+ * 事务提交或回滚之后状态不会再改变，所以提示位一旦设置就一直有效；
+ * 提示位不写日志，丢失了也只是下次重新查询 TM
  */
 public class Entry {
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN+8;
     private static final int OF_DATA = OF_XMAX+8;
 
+    // 提示位，位于 XMIN、XMAX 的最高字节
+    private static final byte HINT_COMMITTED = (byte)0x80;
+    private static final byte HINT_ABORTED = 0x40;
+    private static final long XID_MASK = 0x00FFFFFFFFFFFFFFL;
+
     /**
      * 资源标号，用于缓存框架中的方法中
      */
@@ -61,6 +73,10 @@ public class Entry {
      */
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = ((VersionManagerImpl)vm).dm.read(uid);
+        // 数据已被释放或无效（比如被回滚的插入）
+        if(di == null) {
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
 
@@ -108,7 +124,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX)) & XID_MASK;
         } finally {
             dataItem.rUnLock();
         }
@@ -122,14 +138,94 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA)) & XID_MASK;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 创建该条记录的事务是否已提交
+     * @param tm
+     * @param xmin 之前读到的 XMIN
+     * @return
+     */
+    public boolean isXminCommitted(TransactionManager tm, long xmin) {
+        return isCommitted(tm, OF_XMIN, xmin);
+    }
+
+    /**
+     * 删除该条记录的事务是否已提交
+     * @param tm
+     * @param xmax 之前读到的 XMAX
+     * @return
+     */
+    public boolean isXmaxCommitted(TransactionManager tm, long xmax) {
+        return isCommitted(tm, OF_XMAX, xmax);
+    }
+
+    /**
+     * 先看提示位，没有提示位时查询 TM，查到的最终状态记到提示位上
+     * @param tm
+     * @param of XMIN 或 XMAX 的偏移
+     * @param xid 调用方之前读到的事务号，字段已经被改成别的事务时提示位不属于它
+     * @return
+     */
+    private boolean isCommitted(TransactionManager tm, int of, long xid) {
+        long field;
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            field = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+of, sa.start+of+8));
         } finally {
             dataItem.rUnLock();
         }
+        if((field & XID_MASK) != xid) {
+            return tm.isCommitted(xid);
+        }
+        byte hint = (byte)(field >>> 56);
+        if((hint & HINT_COMMITTED) != 0) {
+            return true;
+        }
+        if((hint & HINT_ABORTED) != 0) {
+            return false;
+        }
+        if(tm.isCommitted(xid)) {
+            setHint(of, xid, HINT_COMMITTED);
+            return true;
+        }
+        if(tm.isAborted(xid)) {
+            setHint(of, xid, HINT_ABORTED);
+        }
+        return false;
+    }
+
+    /**
+     * 设置提示位：只标记脏页，不写日志
+     * 加写锁是为了不和 setXmax() 的修改及其日志交错
+     */
+    private void setHint(int of, long xid, byte hint) {
+        if(xid == TransactionManagerImpl.SUPER_XID) {
+            return;
+        }
+        dataItem.lock();
+        try {
+            SubArray sa = dataItem.data();
+            // 拿到锁之前 XMAX 可能已经被别的事务改掉了
+            long cur = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+of, sa.start+of+8)) & XID_MASK;
+            if(cur != xid) {
+                return;
+            }
+            sa.raw[sa.start+of] |= hint;
+            dataItem.page().setDirty(true);
+        } finally {
+            dataItem.unlock();
+        }
     }
 
     /**
      * 设置删除记录的事务
+     * 新的 XMAX 没有提示位
      * DM 会保证对 DataItem 的修改是原子性的，所以要使用 before() 和 after()
      * @param xid
      */
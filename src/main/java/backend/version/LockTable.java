@@ -1,8 +1,11 @@
 package backend.version;
 
+import backend.common.primitive.LongArrayList;
+import backend.common.primitive.LongIntHashMap;
+import backend.common.primitive.LongLongHashMap;
+import backend.common.primitive.LongObjectHashMap;
 import common.Error;
 
-import java.util.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -13,35 +16,35 @@ public class LockTable {
     /**
      * 某个XID已经获得的资源的UID列表
      */
-    private Map<Long, List<Long>> x2u;
+    private LongObjectHashMap<LongArrayList> x2u;
 
     /**
      * UID被某个XID持有
      */
-    private Map<Long, Long> u2x;
+    private LongLongHashMap u2x;
 
     /**
      * 正在等待UID的XID列表
      */
-    private Map<Long, List<Long>> wait;
+    private LongObjectHashMap<LongArrayList> wait;
 
     /**
      * 正在等待资源的XID的锁
      */
-    private Map<Long, Lock> waitLock;
+    private LongObjectHashMap<Lock> waitLock;
 
     /**
      *  XID正在等待的UID：xid:uid
      */
-    private Map<Long, Long> waitU;
+    private LongLongHashMap waitU;
     private Lock lock;
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
+        x2u = new LongObjectHashMap<>();
+        u2x = new LongLongHashMap();
+        wait = new LongObjectHashMap<>();
+        waitLock = new LongObjectHashMap<>();
+        waitU = new LongLongHashMap();
         lock = new ReentrantLock();
     }
 
@@ -96,10 +99,10 @@ public class LockTable {
         lock.lock();
         try {
             // 该事务拥有的资源全部释放，同时将这些资源分配给其他等待的事务
-            List<Long> l = x2u.get(xid);
+            LongArrayList l = x2u.get(xid);
             if(l != null) {
                 while(l.size() > 0) {
-                    Long uid = l.remove(0);
+                    long uid = l.removeAt(0);
                     selectNewXID(uid);
                 }
             }
@@ -119,7 +122,7 @@ public class LockTable {
      */
     private void selectNewXID(long uid) {
         u2x.remove(uid);
-        List<Long> l = wait.get(uid);
+        LongArrayList l = wait.get(uid);
         if(l == null) {
             return;
         }
@@ -128,7 +131,7 @@ public class LockTable {
         while(l.size() > 0) {
             //从 List 开头开始尝试解锁，还是个公平锁。
             //解锁时，将该 Lock 对象 unlock 即可，这样业务线程就获取到了锁，就可以继续执行了。
-            long xid = l.remove(0);
+            long xid = l.removeAt(0);
             if(!waitLock.containsKey(xid)) {
                 continue;
             } else {
@@ -145,7 +148,7 @@ public class LockTable {
         }
     }
 
-    private Map<Long, Integer> xidStamp;
+    private LongIntHashMap xidStamp;
     private int stamp;
 
     /**
@@ -156,11 +159,11 @@ public class LockTable {
      * @return
      */
     private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
+        xidStamp = new LongIntHashMap();
         stamp = 1;
-        for(long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if(s != null && s > 0) {
+        for(long xid : x2u.keys()) {
+            int s = xidStamp.get(xid, 0);
+            if(s > 0) {
                 continue;
             }
             stamp ++;
@@ -172,22 +175,21 @@ public class LockTable {
     }
 
     private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        if(stp != null && stp == stamp) {
+        int stp = xidStamp.get(xid, 0);
+        if(stp == stamp) {
             return true;
         }
-        if(stp != null && stp < stamp) {
+        if(stp > 0 && stp < stamp) {
             return false;
         }
         xidStamp.put(xid, stamp);
 
-        Long uid = waitU.get(xid);
-        if(uid == null) {
+        if(!waitU.containsKey(xid)) {
             return false;
         }
-        Long x = u2x.get(uid);
-        assert x != null;
-        return dfs(x);
+        long uid = waitU.get(xid, 0);
+        assert u2x.containsKey(uid);
+        return dfs(u2x.get(uid, 0));
     }
 
     /**
@@ -196,19 +198,12 @@ public class LockTable {
      * @param uid0
      * @param uid1
      */
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
+    private void removeFromList(LongObjectHashMap<LongArrayList> listMap, long uid0, long uid1) {
+        LongArrayList l = listMap.get(uid0);
         if(l == null) {
             return;
         }
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                i.remove();
-                break;
-            }
-        }
+        l.removeValue(uid1);
         if(l.size() == 0) {
             listMap.remove(uid0);
         }
@@ -220,11 +215,13 @@ public class LockTable {
      * @param uid0
      * @param uid1
      */
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if(!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    private void putIntoList(LongObjectHashMap<LongArrayList> listMap, long uid0, long uid1) {
+        LongArrayList l = listMap.get(uid0);
+        if(l == null) {
+            l = new LongArrayList();
+            listMap.put(uid0, l);
         }
-        listMap.get(uid0).add(0, uid1);
+        l.add(0, uid1);
     }
 
     /**
@@ -234,19 +231,12 @@ public class LockTable {
      * @param uid1
      * @return
      */
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
+    private boolean isInList(LongObjectHashMap<LongArrayList> listMap, long uid0, long uid1) {
+        LongArrayList l = listMap.get(uid0);
         if(l == null) {
             return false;
         }
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                return true;
-            }
-        }
-        return false;
+        return l.contains(uid1);
     }
 
 }
@@ -1,9 +1,9 @@
 package backend.version;
 
+import backend.common.primitive.LongArrayList;
 import backend.transaction.TransactionManagerImpl;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 // vm对一个事务的抽象
 public class Transaction {
@@ -12,32 +12,73 @@ public class Transaction {
      * 事务级别：0：Read Committed   其他：repeatable read
      */
     public int level;
-    public Map<Long, Boolean> snapshot;
+    /**
+     * 事务开始时正在进行的事务，从小到大排列；和其他快照共享，不能修改
+     */
+    public long[] snapshot;
     public Exception err;
     public boolean autoAborted;
+    /**
+     * 只读事务：不分配持久化的 XID，xid 是一个负数，只用来在 activeTransaction 中找到它
+     */
+    public boolean readOnly;
+    /**
+     * 只读事务开始时最后分配的 XID，之后开始的事务对它不可见
+     */
+    public long horizon;
+    /**
+     * 事务插入和删除的记录，回滚时释放插入的记录，提交后删除的记录等到不再被任何事务看到时释放
+     */
+    public LongArrayList inserted = new LongArrayList();
+    public LongArrayList deleted = new LongArrayList();
 
     /**
      * 构造方法
      * @param xid
      * @param level
-     * @param active 保存着当前所有 active 的事务
+     * @param active 当前所有 active 的事务，有序，直接作为快照保存
      * @return
      */
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, long[] active) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = active;
         }
         return t;
     }
 
+    /**
+     * 构造只读事务
+     * @param handle 只读事务的编号，是一个负数，不会和真正的 XID 重复
+     * @param level
+     * @param horizon 开始时最后分配的 XID
+     * @param active 当前所有 active 的事务，有序
+     * @return
+     */
+    public static Transaction newReadOnlyTransaction(long handle, int level, long horizon, long[] active) {
+        Transaction t = newTransaction(handle, level, active);
+        t.readOnly = true;
+        t.horizon = horizon;
+        return t;
+    }
+
+    /**
+     * 判断 xid 对应的事务是否在本事务开始之后才开始
+     * @param xid
+     * @return
+     */
+    public boolean isAfter(long xid) {
+        if(readOnly) {
+            return xid > horizon;
+        }
+        return xid > this.xid;
+    }
+
     /**
      * 判断xid是否在当前活跃的事务中
+     * 快照范围之外的直接返回，范围之内二分查找
      * @param xid
      * @return
      */
@@ -45,6 +86,10 @@ public class Transaction {
         if(xid == TransactionManagerImpl.SUPER_XID) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        int n = snapshot.length;
+        if(n == 0 || xid < snapshot[0] || xid > snapshot[n - 1]) {
+            return false;
+        }
+        return Arrays.binarySearch(snapshot, xid) >= 0;
     }
 }
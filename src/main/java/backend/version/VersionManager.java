@@ -3,15 +3,25 @@ package backend.version;
 import backend.data.DataManager;
 import backend.transaction.TransactionManager;
 
+import java.util.List;
+
 /**
  * VM 层通过 VersionManager 接口，向上层提供功能
  */
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long[] insertBatch(long xid, List<byte[]> datas) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
 
     long begin(int level);
+
+    /**
+     * 开启一个只读事务，不分配 XID，也不写 XID 文件；在只读事务中写入会抛出异常
+     * @param level 事务等级
+     * @return 只读事务的编号，可以像 XID 一样用于读取、提交和回滚
+     */
+    long beginReadOnly(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
 
@@ -1,14 +1,17 @@
 package backend.version;
 
 import backend.common.AbstractCache;
+import backend.common.primitive.LongObjectHashMap;
 import backend.data.DataManager;
 import backend.transaction.TransactionManager;
 import backend.transaction.TransactionManagerImpl;
 import backend.utils.Panic;
 import common.Error;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,18 +19,47 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     TransactionManager tm;
     DataManager dm;
-    Map<Long, Transaction> activeTransaction;
+    LongObjectHashMap<Transaction> activeTransaction;
     Lock lock;
     LockTable lt;
+    /**
+     * 正在进行的事务，开始新事务时从这里取快照，不需要 lock
+     */
+    ActiveSet active;
+    /**
+     * 最近开始的只读事务的编号，从 -1 开始递减，由 lock 保护
+     */
+    long lastReadOnly;
+    /**
+     * 等待释放的旧版本，按提交顺序排列，由 lock 保护
+     */
+    ArrayDeque<Garbage> garbage;
+
+    /**
+     * 一个事务提交时删除的记录
+     * 此时已经开始的事务（XID 不大于 horizon）可能还能看到它们；新开始的事务都看不到已提交的删除，
+     * 所以当所有活跃事务的 XID 都大于 horizon 时，这些记录就可以释放了
+     */
+    static class Garbage {
+        long horizon;
+        long[] uids;
+
+        Garbage(long horizon, long[] uids) {
+            this.horizon = horizon;
+            this.uids = uids;
+        }
+    }
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new LongObjectHashMap<>();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.active = new ActiveSet();
+        this.garbage = new ArrayDeque<>();
     }
 
     /**
@@ -86,9 +118,50 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        long uid = dm.insert(xid, raw);
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            t.inserted.add(uid);
+        }
+        return uid;
+    }
+
+    /**
+     * 批量插入：所有数据包裹成 Entry 后一起交给 DM，只写一次日志
+     * @param xid
+     * @param datas
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("AlibabaLockShouldWithTryFinally")
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> datas) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+
+        List<byte[]> raws = new ArrayList<>(datas.size());
+        for(byte[] data : datas) {
+            raws.add(Entry.wrapEntryRaw(xid, data));
+        }
+        long[] uids = dm.insertBatch(xid, raws);
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            for(long uid : uids) {
+                t.inserted.add(uid);
+            }
+        }
+        return uids;
     }
 
     /**
@@ -109,6 +182,9 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
         Entry entry = null;
         try {
             entry = super.get(uid);
@@ -154,6 +230,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
 
             entry.setXmax(xid);
+            t.deleted.add(uid);
             return true;
 
         } finally {
@@ -163,15 +240,17 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     /**
      * 开启一个事务，并初始化事务的结构，将其存放在 activeTransaction 中，用于检查和快照使用
+     * 取快照和放进 activeTransaction 之间没有加锁，这期间事务只出现在 active 中，purge 也会参考 active
      * @param level 事务等级
      * @return
      */
     @Override
     public long begin(int level) {
+        ActiveSet.State s = active.begin(tm);
+        long xid = s.lastXid;
+        Transaction t = Transaction.newTransaction(xid, level, s.xids);
         lock.lock();
         try {
-            long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
             activeTransaction.put(xid, t);
             return xid;
         } finally {
@@ -179,6 +258,29 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    /**
+     * 开启一个只读事务
+     * 只读事务不会写数据，不需要 XID 来标记版本，所以不经过 TM；
+     * 它用负数编号放进 activeTransaction，和普通事务一样出现在之后开始的事务的快照中，
+     * 并用开始时的 lastXid 判断哪些事务在它之后开始，同时阻止 purge 释放它还可能看到的旧版本
+     * @param level 事务等级
+     * @return
+     */
+    @Override
+    public long beginReadOnly(int level) {
+        lock.lock();
+        try {
+            // 在 lock 内取快照，purge 要么在这之前完成，要么能看到这个事务
+            ActiveSet.State s = active.current();
+            long handle = -- lastReadOnly;
+            Transaction t = Transaction.newReadOnlyTransaction(handle, level, s.lastXid, s.xids);
+            activeTransaction.put(handle, t);
+            return handle;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 提交一个事务，主要就是 free 掉相关的结构，并且释放持有的锁，并修改 TM 状态
      * @param xid
@@ -196,7 +298,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
         } catch(NullPointerException n) {
             System.out.println(xid);
-            System.out.println(activeTransaction.keySet());
+            System.out.println(Arrays.toString(activeTransaction.keys()));
             Panic.panic(n);
         }
 
@@ -204,8 +306,22 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         activeTransaction.remove(xid);
         lock.unlock();
 
+        // 只读事务没有锁，也没有 XID 状态需要修改
+        if(t.readOnly) {
+            purge();
+            return;
+        }
         lt.remove(xid);
         tm.commit(xid);
+        active.remove(xid);
+
+        if(!t.deleted.isEmpty()) {
+            long horizon = active.current().lastXid;
+            lock.lock();
+            garbage.add(new Garbage(horizon, t.deleted.toArray()));
+            lock.unlock();
+        }
+        purge();
     }
 
     /**
@@ -237,8 +353,58 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.autoAborted) {
             return;
         }
+        if(t.readOnly) {
+            purge();
+            return;
+        }
         lt.remove(xid);
         tm.abort(xid);
+        active.remove(xid);
+
+        // 回滚的事务插入的记录不会被任何事务看到，立即释放
+        if(!t.inserted.isEmpty()) {
+            free(t.inserted.toArray());
+        }
+        purge();
+    }
+
+    /**
+     * 释放已经不会再被任何活跃事务看到的旧版本
+     */
+    private void purge() {
+        List<Garbage> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            long oldest = Long.MAX_VALUE;
+            // 已经取了快照、还没有放进 activeTransaction 的事务只在 active 中
+            long[] running = active.current().xids;
+            if(running.length > 0) {
+                oldest = running[0];
+            }
+            for(Transaction t : activeTransaction.values()) {
+                // 只读事务可能看到 horizon 之前的事务删除的记录
+                long xid = t.readOnly ? t.horizon : t.xid;
+                if(t.xid != TransactionManagerImpl.SUPER_XID && xid < oldest) {
+                    oldest = xid;
+                }
+            }
+            while(!garbage.isEmpty() && garbage.peek().horizon < oldest) {
+                ready.add(garbage.poll());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for(Garbage g : ready) {
+            free(g.uids);
+        }
+    }
+
+    private void free(long[] uids) {
+        try {
+            dm.free(uids);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
     }
 
     public void releaseEntry(Entry entry) {
@@ -21,7 +21,7 @@ public class Visibility {
             // 可重复读则是不允许版本跳跃
             // 解决版本跳跃的思路也很简单：如果 Ti 需要修改 X，而 X 已经被 Ti 不可见的事务 Tj 修改了，那么要求 Ti 回滚。
             // Ti 不可见的 Tj，有两种情况: XID(Tj) > XID(Ti) || Tj in SP(Ti)
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            return e.isXmaxCommitted(tm, xmax) && (t.isAfter(xmax) || t.isInSnapshot(xmax));
         }
     }
 
@@ -59,14 +59,14 @@ public class Visibility {
         }
 
         // 由一个已提交的事务创建且尚未删除或由一个未提交的事务删除
-        if(tm.isCommitted(xmin)) {
+        if(e.isXminCommitted(tm, xmin)) {
             // 尚未删除
             if(xmax == 0) {
                 return true;
             }
             // 由一个未提交的事务删除
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax)) {
+                if(!e.isXmaxCommitted(tm, xmax)) {
                     return true;
                 }
             }
@@ -96,8 +96,9 @@ public class Visibility {
             return true;
         }
 
-        // 由一个已提交的事务创建且 这个事务小于t 且 这个事务在 t 开始前提交
-        if(tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        // 由一个已提交的事务创建且 这个事务在t之前开始 且 这个事务在 t 开始前提交
+        // t 自己还没有提交，所以 xmin 已提交时 xmin 不是 t
+        if(e.isXminCommitted(tm, xmin) && !t.isAfter(xmin) && !t.isInSnapshot(xmin)) {
             // 尚未被删除
             if(xmax == 0) {
                 return true;
@@ -105,7 +106,7 @@ public class Visibility {
             // 由其他事务删除
             if(xmax != xid) {
                 // 这个事务尚未提交 或 这个事务在t开始之后才开始 或 这个事务在t开始前还未提交
-                if(!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if(!e.isXmaxCommitted(tm, xmax) || t.isAfter(xmax) || t.isInSnapshot(xmax)) {
                     return true;
                 }
             }
@@ -27,6 +27,7 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception NullDataItemException = new RuntimeException("Null data item!");
 
     /**
      * 版本控制异常
@@ -34,6 +35,7 @@ public class Error {
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception ReadOnlyTransactionException = new RuntimeException("Cannot write in a read-only transaction!");
 
     /**
      * 表与字段管理异常
@@ -67,4 +69,6 @@ public class Error {
      * 启动异常
      */
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidExtentException = new RuntimeException("Invalid extent size!");
+    public static final Exception InvalidRedoThreadsException = new RuntimeException("Invalid redo threads!");
 }
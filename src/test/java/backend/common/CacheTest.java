@@ -6,7 +6,16 @@ import org.junit.Test;
 
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 /**
  * @author Joe
@@ -36,6 +45,108 @@ public class CacheTest {
         }
     }
 
+    @Test
+    public void testRetainAndEvictUnpinned() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        AtomicInteger evictions = new AtomicInteger();
+        AbstractCache<Long> pool = new AbstractCache<Long>(4, true) {
+            @Override
+            protected Long getForCache(long key) {
+                loads.incrementAndGet();
+                return key;
+            }
+            @Override
+            protected void releaseForCache(Long obj) {
+                evictions.incrementAndGet();
+            }
+        };
+
+        // 引用释放后仍然驻留，再次获取不会访问数据源
+        Long first = pool.get(1);
+        pool.release(1);
+        assertSame(first, pool.get(1));
+        pool.release(1);
+        assertEquals(1, loads.get());
+        assertEquals(0, evictions.get());
+
+        // 缓存满后驱逐未被引用的资源
+        for(long key = 2; key <= 6; key ++) {
+            pool.get(key);
+            pool.release(key);
+        }
+        assertEquals(6, loads.get());
+        assertEquals(2, evictions.get());
+
+        // 所有资源都被引用时才抛出 CacheFullException
+        for(long key = 10; key < 14; key ++) {
+            pool.get(key);
+        }
+        try {
+            pool.get(20);
+            fail();
+        } catch(Exception e) {
+            assertSame(Error.CacheFullException, e);
+        }
+        pool.release(10);
+        pool.get(20);
+    }
+
+    /**
+     * 多线程真正并发地争用一小批热点 key：每次 get 都必须拿到正确的资源，
+     * 关闭缓存时写回的资源数必须和从数据源载入的资源数一致（没有重复载入或泄漏引用）
+     */
+    @Test
+    public void testConcurrentContention() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        AtomicInteger evictions = new AtomicInteger();
+        AbstractCache<Long> pool = new AbstractCache<Long>(256, true) {
+            @Override
+            protected Long getForCache(long key) {
+                loads.incrementAndGet();
+                return key;
+            }
+            @Override
+            protected void releaseForCache(Long obj) {
+                evictions.incrementAndGet();
+            }
+        };
+
+        int noWorkers = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for(int i = 0; i < noWorkers; i ++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    for(int j = 0; j < 20000; j ++) {
+                        long key = r.nextInt(1024);
+                        long h = pool.get(key);
+                        if(h != key) {
+                            throw new AssertionError("expected " + key + " but got " + h);
+                        }
+                        pool.release(key);
+                    }
+                } catch(Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers.add(t);
+            t.start();
+        }
+        start.countDown();
+        for(Thread t : workers) {
+            t.join();
+        }
+        if(failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        pool.close();
+        assertEquals(loads.get(), evictions.get());
+    }
+
     private void work() {
         for(int i = 0; i < 1000; i++) {
             long uid = random.nextInt();
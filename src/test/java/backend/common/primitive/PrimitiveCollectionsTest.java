@@ -0,0 +1,80 @@
+package backend.common.primitive;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 用随机操作序列对照 java.util 的集合，校验开放寻址表在插入、覆盖、删除（后移）和扩容后的行为
+ */
+public class PrimitiveCollectionsTest {
+
+    @Test
+    public void testMapsAgainstHashMap() {
+        Random random = new Random(13331);
+        LongIntHashMap intMap = new LongIntHashMap();
+        LongObjectHashMap<String> objMap = new LongObjectHashMap<>();
+        LongHashSet set = new LongHashSet();
+        Map<Long, Integer> expected = new HashMap<>();
+        Set<Long> expectedSet = new HashSet<>();
+
+        for(int i = 0; i < 200000; i ++) {
+            // 键的范围较小，制造大量冲突和重复操作；包含 0 这个特殊键
+            long key = random.nextInt(2000) - 100;
+            int op = random.nextInt(3);
+            if(op == 0) {
+                int v = random.nextInt();
+                intMap.put(key, v);
+                objMap.put(key, String.valueOf(v));
+                set.add(key);
+                expected.put(key, v);
+                expectedSet.add(key);
+            } else if(op == 1) {
+                Integer old = expected.remove(key);
+                assertEquals(old != null, intMap.remove(key));
+                assertEquals(old == null ? null : String.valueOf(old), objMap.remove(key));
+                assertEquals(expectedSet.remove(key), set.remove(key));
+            } else {
+                Integer v = expected.get(key);
+                assertEquals(v != null, intMap.containsKey(key));
+                assertEquals(v == null ? -1 : v, intMap.get(key, -1));
+                assertEquals(v == null ? null : String.valueOf(v), objMap.get(key));
+                assertEquals(expectedSet.contains(key), set.contains(key));
+            }
+            assertEquals(expected.size(), intMap.size());
+            assertEquals(expected.size(), objMap.size());
+            assertEquals(expectedSet.size(), set.size());
+        }
+
+        long[] keys = expected.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        long[] actual = intMap.keys();
+        Arrays.sort(actual);
+        assertArrayEquals(keys, actual);
+        actual = set.toArray();
+        Arrays.sort(actual);
+        assertArrayEquals(keys, actual);
+    }
+
+    @Test
+    public void testArrayList() {
+        LongArrayList list = new LongArrayList();
+        for(long i = 0; i < 100; i ++) {
+            list.add(0, i);
+        }
+        assertEquals(100, list.size());
+        assertEquals(99, list.get(0));
+        assertEquals(99, list.removeAt(0));
+        assertEquals(true, list.removeValue(50));
+        assertEquals(false, list.contains(50));
+        assertEquals(98, list.size());
+        assertEquals(0, list.get(97));
+    }
+}
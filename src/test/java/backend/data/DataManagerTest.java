@@ -0,0 +1,219 @@
+package backend.data;
+
+import backend.common.SubArray;
+import backend.data.dataItem.DataItem;
+import backend.data.page.Page;
+import backend.data.page.PageX;
+import backend.data.pageCache.PageCache;
+import backend.data.pageIndex.PageInfo;
+import backend.transaction.MockTransactionManager;
+import backend.transaction.TransactionManagerImpl;
+import backend.utils.Types;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DataManagerTest {
+    private File dir;
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("dm-test").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static byte[] data(int thread, int i) {
+        byte[] d = new byte[100];
+        Arrays.fill(d, (byte)(thread * 31 + i));
+        d[0] = (byte)thread;
+        d[1] = (byte)(i >> 8);
+        d[2] = (byte)i;
+        return d;
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull(di);
+        try {
+            SubArray sa = di.data();
+            return Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+        } finally {
+            di.release();
+        }
+    }
+
+    @Test
+    public void testConcurrentInsertSharesPages() throws Exception {
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, 1 << 22, new MockTransactionManager());
+        int threads = 8, perThread = 500;
+        Map<Long, byte[]> inserted = new ConcurrentHashMap<>();
+        List<Thread> ts = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            int thread = t;
+            ts.add(new Thread(() -> {
+                try {
+                    for(int i = 0; i < perThread; i ++) {
+                        byte[] d = data(thread, i);
+                        inserted.put(dm.insert(TransactionManagerImpl.SUPER_XID, d), d);
+                    }
+                } catch(Throwable e) {
+                    synchronized(errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for(Thread t : ts) {
+            t.start();
+        }
+        for(Thread t : ts) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * perThread, inserted.size());
+        for(Map.Entry<Long, byte[]> e : inserted.entrySet()) {
+            assertArrayEquals(e.getValue(), read(dm, e.getKey()));
+        }
+
+        // 多个线程同时向同一页插入，页面基本都是填满的，并发只会在末尾多出几页
+        int perPage = PageCache.PAGE_SIZE / (100 + 3 + 4);
+        int minPages = (threads * perThread + perPage - 1) / perPage;
+        // 第一页是 PageOne
+        int dataPages = dm.pc.getPageNumber() - 1;
+        assertTrue("data pages: " + dataPages, dataPages <= minPages + minPages / 10 + threads);
+        dm.close();
+    }
+
+    @Test
+    public void testInsertBatchPacksPagesAndSurvivesReopen() throws Exception {
+        MockTransactionManager tm = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, 1 << 22, tm);
+        int n = 1000;
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < n; i ++) {
+            datas.add(data(0, i));
+        }
+        long[] uids = dm.insertBatch(TransactionManagerImpl.SUPER_XID, datas);
+        assertEquals(n, uids.length);
+        for(int i = 0; i < n; i ++) {
+            assertArrayEquals(datas.get(i), read(dm, uids[i]));
+        }
+
+        // 按顺序装满一页再用下一页
+        int perPage = PageCache.PAGE_SIZE / (100 + 3 + 4);
+        int minPages = (n + perPage - 1) / perPage;
+        assertEquals(minPages, dm.pc.getPageNumber() - 1);
+        for(int i = 1; i < n; i ++) {
+            assertTrue(Types.uidToPgno(uids[i - 1]) <= Types.uidToPgno(uids[i]));
+        }
+        dm.close();
+
+        DataManager reopened = DataManager.open(path, 1 << 22, tm);
+        for(int i = 0; i < n; i ++) {
+            assertArrayEquals(datas.get(i), read(reopened, uids[i]));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void testFreedSpaceIsReused() throws Exception {
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, 1 << 22, new MockTransactionManager());
+        byte[] d = new byte[200];
+        // 同样大小的数据反复插入、释放，以及保留 100 条数据、每次释放最早的一条
+        for(int i = 0; i < 10000; i ++) {
+            dm.free(new long[]{dm.insert(TransactionManagerImpl.SUPER_XID, d)});
+        }
+        Deque<Long> live = new ArrayDeque<>();
+        for(int i = 0; i < 10000; i ++) {
+            live.add(dm.insert(TransactionManagerImpl.SUPER_XID, d));
+            if(live.size() > 100) {
+                dm.free(new long[]{live.poll()});
+            }
+        }
+        // 100 条数据放得下 3 页，整理碎片时页面可能正在被使用，允许多用几页
+        assertTrue(dm.pc.getPageNumber() - 1 <= 6);
+
+        // 没有进行中的插入时，索引中每一页的空闲空间和页面上的一致
+        for(PageInfo pi : dm.pIndex.pages()) {
+            Page pg = dm.pc.getPage(pi.pgno);
+            try {
+                assertEquals(PageX.getFreeSpace(pg), pi.freeSpace);
+            } finally {
+                pg.release();
+            }
+        }
+        dm.close();
+    }
+
+    @Test
+    public void testMmapRoundTrip() throws Exception {
+        MockTransactionManager tm = new MockTransactionManager();
+        // 缓冲池只有 32 页，页面不断被驱逐、通过映射区域写回；区段很小，文件增长后要重新映射
+        long mem = 32 * PageCache.PAGE_SIZE;
+        long extent = 4 * PageCache.PAGE_SIZE;
+        Map<Long, byte[]> inserted = new HashMap<>();
+        DataManager dm = DataManager.create(path, mem, tm, extent);
+        for(int i = 0; i < 2000; i ++) {
+            byte[] d = data(0, i);
+            inserted.put(dm.insert(TransactionManagerImpl.SUPER_XID, d), d);
+        }
+        dm.close();
+
+        for(int round = 1; round <= 3; round ++) {
+            dm = DataManager.open(path, mem, tm, true, extent);
+            for(Map.Entry<Long, byte[]> e : inserted.entrySet()) {
+                assertArrayEquals(e.getValue(), read(dm, e.getKey()));
+            }
+            List<Long> freed = new ArrayList<>();
+            for(long uid : inserted.keySet()) {
+                if(freed.size() == 200) {
+                    break;
+                }
+                freed.add(uid);
+            }
+            long[] uids = new long[freed.size()];
+            for(int i = 0; i < uids.length; i ++) {
+                uids[i] = freed.get(i);
+                inserted.remove(uids[i]);
+            }
+            dm.free(uids);
+            for(int i = 0; i < 2000; i ++) {
+                byte[] d = data(round, i);
+                inserted.put(dm.insert(TransactionManagerImpl.SUPER_XID, d), d);
+            }
+            dm.close();
+        }
+
+        dm = DataManager.open(path, mem, tm, false, extent);
+        for(Map.Entry<Long, byte[]> e : inserted.entrySet()) {
+            assertArrayEquals(e.getValue(), read(dm, e.getKey()));
+        }
+        dm.close();
+    }
+}
@@ -0,0 +1,340 @@
+package backend.data;
+
+import backend.common.SubArray;
+import backend.data.dataItem.DataItem;
+import backend.data.logger.Logger;
+import backend.data.pageCache.PageCache;
+import backend.transaction.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecoverTest {
+    private static final long MEM = 1 << 22;
+
+    private File dir;
+    private String path;
+
+    /**
+     * 崩溃时已经提交的数据
+     */
+    private Map<Long, byte[]> expected;
+    /**
+     * 崩溃之前已经释放或者被置为无效的数据
+     */
+    private List<Long> freed;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("recover-test").toFile();
+        path = new File(dir, "db").getPath();
+        expected = new HashMap<>();
+        freed = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if(children != null) {
+            for(File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static byte[] data(int i, int length) {
+        byte[] d = new byte[length];
+        Arrays.fill(d, (byte)i);
+        d[0] = (byte)(i >> 8);
+        return d;
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            return null;
+        }
+        try {
+            SubArray sa = di.data();
+            return Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+        } finally {
+            di.release();
+        }
+    }
+
+    private static void update(DataManager dm, long xid, long uid, byte[] d) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull(di);
+        try {
+            di.before();
+            SubArray sa = di.data();
+            System.arraycopy(d, 0, sa.raw, sa.start, d.length);
+            di.after(xid);
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 连同数据项的头部整个改写，通过 DataItem 正常写下更新日志
+     * 修改覆盖了整个数据项时增量日志不比完整日志小（deltaSize >= 2*oldRaw.length），updateLog 退回到完整更新日志
+     */
+    private static void updateRaw(DataManager dm, long xid, long uid, byte[] newRaw) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull(di);
+        try {
+            di.before();
+            SubArray raw = di.getRaw();
+            System.arraycopy(newRaw, 0, raw.raw, raw.start, newRaw.length);
+            assertEquals(1, Recover.updateLog(xid, di)[0]);
+            di.after(xid);
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 直接按完整更新日志的格式写日志：[LogType] [XID] [UID] [OldRaw] [NewRaw]
+     * 只修改数据部分时 updateLog 总是选择更小的增量日志，这里模拟旧版本写下的完整更新日志
+     */
+    private static void updateFull(DataManagerImpl dm, long xid, long uid, byte[] d) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull(di);
+        try {
+            di.before();
+            SubArray sa = di.data();
+            System.arraycopy(d, 0, sa.raw, sa.start, d.length);
+            SubArray raw = di.getRaw();
+            byte[] oldRaw = di.getOldRaw();
+            ByteBuffer log = ByteBuffer.allocate(17 + oldRaw.length * 2);
+            log.put((byte)1).putLong(xid).putLong(uid).put(oldRaw).put(raw.raw, raw.start, oldRaw.length);
+            dm.logger.log(log.array());
+            di.unlock();
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 写下插入、增量更新、完整更新、释放、整页和检查点日志，返回时没有关闭 DataManager
+     */
+    private DataManagerImpl workload(TransactionManager tm) throws Exception {
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, MEM, tm);
+        // 检查点的位置由测试决定
+        dm.checkpointer.shutdown();
+
+        long t1 = tm.begin();
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 300; i ++) {
+            byte[] d = data(i, 100);
+            long uid = dm.insert(t1, d);
+            uids.add(uid);
+            expected.put(uid, d);
+        }
+        List<Long> small = new ArrayList<>();
+        for(int i = 0; i < 10; i ++) {
+            byte[] d = data(i, 2);
+            long uid = dm.insert(t1, d);
+            small.add(uid);
+            expected.put(uid, d);
+        }
+        tm.commit(t1);
+        dm.checkpoint();
+
+        long t2 = tm.begin();
+        for(int i = 0; i < uids.size(); i += 3) {
+            long uid = uids.get(i);
+            byte[] d = expected.get(uid).clone();
+            d[10] = (byte)0x5A;
+            d[11] = (byte)0xA5;
+            update(dm, t2, uid, d);
+            expected.put(uid, d);
+        }
+        for(long uid : small) {
+            byte[] d = {(byte)0xCC, (byte)0x33};
+            updateFull(dm, t2, uid, d);
+            expected.put(uid, d);
+        }
+        // 把整个数据项改写为无效，恢复后读不到
+        for(int i = 41; i < 46; i ++) {
+            long uid = uids.get(i);
+            byte[] raw = DataItem.wrapDataItemRaw(data(0xFF, 100));
+            DataItem.setDataItemRawInvalid(raw);
+            updateRaw(dm, t2, uid, raw);
+            expected.remove(uid);
+            freed.add(uid);
+        }
+        tm.commit(t2);
+
+        // 同一页上释放得足够多，整理碎片并记录整页日志
+        long[] free = new long[40];
+        for(int i = 0; i < free.length; i ++) {
+            free[i] = uids.get(i);
+            expected.remove(free[i]);
+            freed.add(free[i]);
+        }
+        dm.free(free);
+
+        // 整理碎片之后再插入，重做时要在整理后的页面上进行
+        long t3 = tm.begin();
+        for(int i = 0; i < 20; i ++) {
+            byte[] d = data(1000 + i, 100);
+            expected.put(dm.insert(t3, d), d);
+        }
+        tm.commit(t3);
+        return dm;
+    }
+
+    /**
+     * 不关闭 DataManager，把磁盘上的文件复制到另一个目录，相当于在这一刻崩溃
+     */
+    private String crashCopy(String name) throws IOException {
+        File copy = new File(dir, name);
+        assertTrue(copy.mkdir());
+        for(File f : dir.listFiles()) {
+            if(f.isFile()) {
+                Files.copy(f.toPath(), new File(copy, f.getName()).toPath());
+            }
+        }
+        return new File(copy, "db").getPath();
+    }
+
+    /**
+     * 每种日志的条数，下标是日志类型
+     */
+    private static int[] logTypes(String path) {
+        int[] counts = new int[6];
+        Logger lg = Logger.open(path);
+        lg.rewind();
+        byte[] log;
+        while((log = lg.next()) != null) {
+            counts[log[0]] ++;
+        }
+        lg.close();
+        return counts;
+    }
+
+    private static DataManager recover(String copy, TransactionManager tm, int threads) {
+        return DataManager.open(copy, MEM, tm, false, PageCache.DEFAULT_EXTENT_SIZE, threads);
+    }
+
+    private void verify(DataManager dm) throws Exception {
+        for(Map.Entry<Long, byte[]> e : expected.entrySet()) {
+            assertArrayEquals(e.getValue(), read(dm, e.getKey()));
+        }
+        for(long uid : freed) {
+            assertNull(read(dm, uid));
+        }
+    }
+
+    @Test
+    public void testRecoverAfterCrash() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = workload(tm);
+        String copy = crashCopy("crash");
+        dm.close();
+        tm.close();
+
+        // 插入、完整更新、释放、整页、检查点、增量更新
+        int[] counts = logTypes(copy);
+        for(int type = 0; type < counts.length; type ++) {
+            assertTrue("log type " + type, counts[type] > 0);
+        }
+
+        TransactionManager recoveredTm = TransactionManager.open(copy);
+        DataManager recovered = recover(copy, recoveredTm, 1);
+        verify(recovered);
+        recovered.close();
+        recoveredTm.close();
+    }
+
+    /**
+     * 第一页在每次打开时写入随机字节，比较之后的所有页面
+     */
+    private static byte[] pages(String path) throws IOException {
+        byte[] raw = Files.readAllBytes(new File(path + ".db").toPath());
+        return Arrays.copyOfRange(raw, PageCache.PAGE_SIZE, raw.length);
+    }
+
+    @Test
+    public void testParallelRedoMatchesSerial() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = workload(tm);
+        String serial = crashCopy("serial");
+        String parallel = crashCopy("parallel");
+        dm.close();
+        tm.close();
+
+        TransactionManager serialTm = TransactionManager.open(serial);
+        DataManager recovered = recover(serial, serialTm, 1);
+        verify(recovered);
+        recovered.close();
+        serialTm.close();
+
+        TransactionManager parallelTm = TransactionManager.open(parallel);
+        recovered = recover(parallel, parallelTm, 4);
+        verify(recovered);
+        recovered.close();
+        parallelTm.close();
+
+        byte[] expectedPages = pages(serial);
+        byte[] actualPages = pages(parallel);
+        assertEquals(expectedPages.length, actualPages.length);
+        assertArrayEquals(expectedPages, actualPages);
+    }
+
+    @Test
+    public void testUndoUnfinishedDelta() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = workload(tm);
+
+        // 崩溃时还没有结束的事务：增量更新已经提交的数据，并插入新的数据
+        long t4 = tm.begin();
+        int updated = 0;
+        for(Map.Entry<Long, byte[]> e : expected.entrySet()) {
+            if(e.getValue().length != 100 || updated == 50) {
+                continue;
+            }
+            byte[] d = e.getValue().clone();
+            d[20] = (byte)0x77;
+            d[60] = (byte)0x88;
+            update(dm, t4, e.getKey(), d);
+            updated ++;
+        }
+        long inserted = dm.insert(t4, data(2000, 100));
+        // 检查点把没有提交的修改也写回磁盘，撤销要在磁盘上的页面上进行
+        dm.checkpoint();
+        String copy = crashCopy("unfinished");
+        dm.close();
+        tm.close();
+
+        TransactionManager recoveredTm = TransactionManager.open(copy);
+        DataManager recovered = recover(copy, recoveredTm, 1);
+        verify(recovered);
+        assertNull(read(recovered, inserted));
+        assertTrue(recoveredTm.isAborted(t4));
+        recovered.close();
+        recoveredTm.close();
+    }
+}
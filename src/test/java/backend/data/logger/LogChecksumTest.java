@@ -0,0 +1,35 @@
+package backend.data.logger;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class LogChecksumTest {
+
+    @Test
+    public void testJdkAndGuavaAgree() {
+        byte[] empty = new byte[0];
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        // CRC32C 的标准校验值
+        assertEquals(0xE3069283, LogChecksum.guavaCrc32c(check, 0, check.length, empty, 0, 0));
+        assertEquals(0xE3069283, LogChecksum.crc32c(check, 0, 4, check, 4, 5));
+
+        // 测试运行在 Java 9 以上，反射创建的 CRC32C 一定存在
+        assertNotNull(LogChecksum.jdkCrc32c(empty, 0, 0, empty, 0, 0));
+        Random random = new Random(1);
+        for(int i = 0; i < 1000; i ++) {
+            byte[] b1 = new byte[random.nextInt(16)];
+            byte[] b2 = new byte[random.nextInt(4096)];
+            random.nextBytes(b1);
+            random.nextBytes(b2);
+            int off2 = b2.length == 0 ? 0 : random.nextInt(b2.length);
+            int len2 = b2.length - off2;
+            assertEquals(LogChecksum.guavaCrc32c(b1, 0, b1.length, b2, off2, len2),
+                    (int)LogChecksum.jdkCrc32c(b1, 0, b1.length, b2, off2, len2));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package backend.data.logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerTest {
+    private File dir;
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("logger-test").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static byte[] data(int i) {
+        byte[] d = new byte[40];
+        d[0] = (byte)i;
+        return d;
+    }
+
+    private int segmentCount() {
+        return dir.listFiles((d, name) -> name.startsWith("db.log.")).length;
+    }
+
+    @Test
+    public void testSegmentsAcrossReopenAndRemove() {
+        // 每个段放得下 4 条日志
+        LoggerImpl lg = LoggerImpl.create(path, 8 + 4 * 48);
+        long[] ends = new long[10];
+        for(int i = 0; i < 10; i ++) {
+            ends[i] = lg.append(data(i));
+        }
+        lg.flush(ends[9]);
+        assertEquals(ends[9], lg.end());
+        assertEquals(3, segmentCount());
+        lg.close();
+
+        lg = LoggerImpl.open(path, 8 + 4 * 48);
+        assertEquals(ends[9], lg.end());
+        List<Long> starts = new ArrayList<>();
+        lg.rewind();
+        for(int i = 0; i < 10; i ++) {
+            starts.add(lg.position());
+            assertArrayEquals(data(i), lg.next());
+        }
+        assertNull(lg.next());
+
+        // 删除第一个段之后，从第二个段的第一条日志开始读
+        lg.removeBefore(starts.get(5));
+        assertEquals(2, segmentCount());
+        lg.rewind();
+        assertEquals((long)starts.get(4), lg.position());
+        assertArrayEquals(data(4), lg.next());
+
+        // 正在追加的段不会被删除
+        lg.removeBefore(Long.MAX_VALUE);
+        assertEquals(1, segmentCount());
+        long end = lg.append(data(10));
+        lg.flush(end);
+        assertTrue(end > ends[9]);
+        lg.close();
+    }
+
+    @Test
+    public void testBadChecksumEndsScan() throws Exception {
+        LoggerImpl lg = LoggerImpl.create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+        long[] ends = new long[5];
+        for(int i = 0; i < 5; i ++) {
+            ends[i] = lg.append(data(i));
+        }
+        lg.flush(ends[4]);
+        lg.close();
+
+        // 改掉第 3 条日志 Data 中的一个字节，长度不变，只有校验和对不上
+        File segment = dir.listFiles((d, name) -> name.startsWith("db.log."))[0];
+        try(RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(ends[1] + 8 + 5);
+            raf.write(0x7F);
+        }
+
+        lg = LoggerImpl.open(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+        // 从校验失败的日志开始都是 BadTail，被截掉
+        assertEquals(ends[1], lg.end());
+        assertEquals(ends[1], segment.length());
+        lg.rewind();
+        assertArrayEquals(data(0), lg.next());
+        assertArrayEquals(data(1), lg.next());
+        assertNull(lg.next());
+
+        long end = lg.append(data(5));
+        lg.flush(end);
+        lg.rewind();
+        lg.next();
+        lg.next();
+        assertArrayEquals(data(5), lg.next());
+        assertNull(lg.next());
+        lg.close();
+    }
+
+    @Test
+    public void testConcurrentAppendAndFlush() throws Exception {
+        int threads = 8, records = 500;
+        LoggerImpl lg = LoggerImpl.create(path, 8 + 64 * 48);
+        ConcurrentHashMap<Long, Boolean> lsns = new ConcurrentHashMap<>();
+        List<Throwable> errors = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t ++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    long last = 0;
+                    for(int i = 0; i < records; i ++) {
+                        long lsn = lg.append(record(id, i));
+                        // 同一个线程追加的日志，序号递增
+                        assertTrue(lsn > last);
+                        assertFalse(lsns.containsKey(lsn));
+                        lsns.put(lsn, true);
+                        if(i % 5 == 4) {
+                            lg.flush(lsn);
+                            assertTrue(lg.end() >= lsn);
+                        }
+                        last = lsn;
+                    }
+                    lg.flush(last);
+                } catch(Throwable e) {
+                    synchronized(errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for(Thread w : workers) {
+            w.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * records, lsns.size());
+        lg.close();
+
+        // 重新打开后每条日志都能读到，每个线程的日志保持追加时的顺序
+        LoggerImpl reopened = LoggerImpl.open(path, 8 + 64 * 48);
+        int[] next = new int[threads];
+        reopened.rewind();
+        byte[] log;
+        int count = 0;
+        while((log = reopened.next()) != null) {
+            int id = log[0], i = ((log[1] & 0xFF) << 8) | (log[2] & 0xFF);
+            assertEquals(next[id], i);
+            next[id] ++;
+            count ++;
+        }
+        assertEquals(threads * records, count);
+        reopened.close();
+    }
+
+    private static byte[] record(int thread, int i) {
+        byte[] d = new byte[40];
+        d[0] = (byte)thread;
+        d[1] = (byte)(i >> 8);
+        d[2] = (byte)i;
+        return d;
+    }
+}
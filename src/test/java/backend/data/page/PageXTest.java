@@ -0,0 +1,107 @@
+package backend.data.page;
+
+import backend.data.dataItem.DataItem;
+import backend.data.pageCache.PageCache;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PageXTest {
+
+    private static short insert(Page pg, byte[] data, int[] slotWord) {
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        slotWord[0] = PageX.nextSlot(pg);
+        short offset = PageX.getFSO(pg);
+        PageX.insert(pg, raw, slotWord[0], offset);
+        return offset;
+    }
+
+    private static byte[] read(Page pg, int slotWord) {
+        short offset = PageX.getOffset(pg, slotWord);
+        int length = DataItem.rawLength(pg.getData(), offset);
+        return Arrays.copyOfRange(pg.getData(), offset + 3, offset + length);
+    }
+
+    @Test
+    public void testSlotRetiredBeforeGenerationWraps() {
+        Page pg = new PageImpl(2, PageX.initRaw(), null);
+        int[] sw = new int[1];
+        insert(pg, new byte[]{1}, sw);
+        int first = sw[0];
+        assertEquals(0, first);
+
+        // 同一个槽反复释放、复用，版本号用完之前一直是槽 0
+        int reuses = 0;
+        while(true) {
+            PageX.free(pg, sw[0]);
+            PageX.compact(pg);
+            insert(pg, new byte[]{2}, sw);
+            if((sw[0] & 0xFFFF) != 0) {
+                break;
+            }
+            reuses ++;
+            // 旧的槽字永远不会再指向新数据
+            assertEquals(-1, PageX.getOffset(pg, first));
+        }
+        assertEquals(0xFFFF, reuses);
+        // 槽 0 退役后启用了新的槽 1
+        assertEquals(1, sw[0]);
+        assertEquals(-1, PageX.getOffset(pg, first));
+    }
+
+    @Test
+    public void testSlotReuseAndCompaction() {
+        Page pg = new PageImpl(2, PageX.initRaw(), null);
+        int[] sw = new int[1];
+        int[] words = new int[4];
+        byte[][] datas = new byte[4][];
+        for(int i = 0; i < 4; i ++) {
+            datas[i] = new byte[1000];
+            Arrays.fill(datas[i], (byte)i);
+            insert(pg, datas[i], sw);
+            words[i] = sw[0];
+        }
+        int free = PageX.getFreeSpace(pg);
+
+        // 释放之后空间计入空闲空间，但不是连续的
+        assertEquals(1003, PageX.free(pg, words[1]));
+        assertEquals(-1, PageX.getOffset(pg, words[1]));
+        assertEquals(free + 1003, PageX.getFreeSpace(pg));
+        assertEquals(1003, PageX.getFragmentedSpace(pg));
+
+        // 复用空闲槽，版本号变化，旧槽字不再指向新数据
+        short before = PageX.getOffset(pg, words[3]);
+        insert(pg, new byte[10], sw);
+        assertEquals(words[1] & 0xFFFF, sw[0] & 0xFFFF);
+        assertNotEquals(words[1], sw[0]);
+        assertEquals(-1, PageX.getOffset(pg, words[1]));
+
+        // 整理碎片后数据移动，但槽字不变
+        PageX.compact(pg);
+        assertEquals(0, PageX.getFragmentedSpace(pg));
+        assertTrue(PageX.getOffset(pg, words[3]) < before);
+        for(int i : new int[]{0, 2, 3}) {
+            assertTrue(Arrays.equals(datas[i], read(pg, words[i])));
+        }
+        assertEquals(10, read(pg, sw[0]).length);
+    }
+
+    @Test
+    public void testCompactDropsInvalid() {
+        Page pg = new PageImpl(2, PageX.initRaw(), null);
+        int[] sw = new int[1];
+        insert(pg, new byte[100], sw);
+        int invalid = sw[0];
+        insert(pg, new byte[100], sw);
+        PageX.setInvalid(pg, invalid);
+        PageX.compact(pg);
+        assertEquals(-1, PageX.getOffset(pg, invalid));
+        assertEquals(PageX.MAX_FREE_SPACE - 2 * PageX.SLOT_SIZE - 103, PageX.getFreeSpace(pg));
+        assertFalse(PageX.hasRoom(pg, PageCache.PAGE_SIZE));
+    }
+}
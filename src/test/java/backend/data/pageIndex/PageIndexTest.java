@@ -0,0 +1,82 @@
+package backend.data.pageIndex;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PageIndexTest {
+
+    @Test
+    public void testConcurrentSelectKeepsFreeSpace() throws Exception {
+        int pages = 20;
+        int free = 8000;
+        PageIndex index = new PageIndex();
+        for(int pgno = 1; pgno <= pages; pgno ++) {
+            index.add(pgno, free);
+        }
+
+        // 8 个线程同时预留空间，同一页可以被多个线程分到
+        AtomicIntegerArray reserved = new AtomicIntegerArray(pages + 1);
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 8; t ++) {
+            threads.add(new Thread(() -> {
+                PageInfo pi;
+                while((pi = index.select(100)) != null) {
+                    assertEquals(100, pi.freeSpace);
+                    reserved.addAndGet(pi.pgno, pi.freeSpace);
+                }
+            }));
+        }
+        for(Thread t : threads) {
+            t.start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+
+        // 每一页预留出去的空间加上索引里剩下的空间，仍然是这一页原来的空闲空间
+        int[] left = new int[pages + 1];
+        for(PageInfo pi : index.pages()) {
+            left[pi.pgno] += pi.freeSpace;
+        }
+        for(int pgno = 1; pgno <= pages; pgno ++) {
+            assertEquals(free, reserved.get(pgno) + left[pgno]);
+            // 剩下的只有不满一个区间、选不出来的零头，没有页面被漏掉
+            assertTrue(left[pgno] <= 200);
+        }
+        assertNull(index.select(1));
+    }
+
+    @Test
+    public void testReturnedSpaceMergesIntoPage() {
+        PageIndex index = new PageIndex();
+        index.add(1, 8000);
+        // 预留之后归还、预留到只剩零头：一页始终只有一条记录
+        for(int i = 0; i < 10000; i ++) {
+            PageInfo pi = index.select(200);
+            assertNotNull(pi);
+            index.add(pi.pgno, pi.freeSpace);
+        }
+        while(index.select(1000) != null) {
+        }
+        List<PageInfo> pages = index.pages();
+        assertEquals(1, pages.size());
+        assertEquals(8000 - 7000, pages.get(0).freeSpace);
+
+        // 释放的空间加回这一页之后，整页的空间又可以被选中
+        index.add(1, 7000);
+        PageInfo pi = index.take(7900);
+        assertNotNull(pi);
+        assertEquals(8000, pi.freeSpace);
+        assertNull(index.select(1));
+        index.add(1, pi.freeSpace);
+        assertEquals(1, index.pages().size());
+    }
+}
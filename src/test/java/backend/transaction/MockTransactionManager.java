@@ -19,6 +19,9 @@ public class MockTransactionManager implements TransactionManager {
     @Override
     public void abort(long xid) {}
 
+    @Override
+    public void abortUnfinished() {}
+
     @Override
     public boolean isActive(long xid) {
         return false;
@@ -11,6 +11,9 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 /**
  * @author Joe
  * @ClassName TransactionManagerTest.java
@@ -46,6 +49,102 @@ public class TransactionManagerTest {
         assert new File("/tmp/tranmger_test.xid").delete();
     }
 
+    @Test
+    public void testStatusAfterReopen() {
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_reopen_test");
+        // 跨过状态表的一个块
+        int n = 70000;
+        for(int i = 1; i <= n; i ++) {
+            long xid = tm.begin();
+            if(i % 3 == 1) {
+                tm.commit(xid);
+            } else if(i % 3 == 2) {
+                tm.abort(xid);
+            }
+        }
+        tm.close();
+
+        tm = TransactionManager.open("/tmp/tranmger_reopen_test");
+        for(long xid = 1; xid <= n; xid ++) {
+            switch((int)(xid % 3)) {
+                case 1:
+                    assertTrue(tm.isCommitted(xid));
+                    break;
+                case 2:
+                    assertTrue(tm.isAborted(xid));
+                    break;
+                default:
+                    assertTrue(tm.isActive(xid));
+            }
+        }
+        assertEquals(n + 1, tm.begin());
+        tm.close();
+        assertTrue(new File("/tmp/tranmger_reopen_test.xid").delete());
+    }
+
+    @Test
+    public void testAbortUnfinishedAfterCrash() {
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_crash_test");
+        long committed = tm.begin();
+        long active = tm.begin();
+        tm.commit(committed);
+
+        // 不关闭直接重新打开，相当于崩溃
+        TransactionManager reopened = TransactionManager.open("/tmp/tranmger_crash_test");
+        assertTrue(reopened.isCommitted(committed));
+        assertTrue(reopened.isActive(active));
+        reopened.abortUnfinished();
+        assertTrue(reopened.isAborted(active));
+        // 预留了但没有分配出去的 XID
+        assertTrue(reopened.isAborted(active + 1));
+        long xid = reopened.begin();
+        assertTrue(xid > active + 1);
+        assertTrue(reopened.isActive(xid));
+        reopened.close();
+        tm.close();
+        assertTrue(new File("/tmp/tranmger_crash_test.xid").delete());
+    }
+
+    @Test
+    public void testConcurrentCommitsAfterReopen() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_concurrent_test");
+        int threads = 8, per = 300;
+        Map<Long, Byte> expected = new ConcurrentHashMap<>();
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t ++) {
+            workers[t] = new Thread(() -> {
+                for(int i = 0; i < per; i ++) {
+                    long xid = tm.begin();
+                    if(random.nextBoolean()) {
+                        tm.commit(xid);
+                        expected.put(xid, (byte)1);
+                    } else {
+                        tm.abort(xid);
+                        expected.put(xid, (byte)2);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for(Thread w : workers) {
+            w.join();
+        }
+        tm.close();
+
+        // 状态都写在各自的位置上，重新打开后从文件读到的状态一致
+        TransactionManager reopened = TransactionManager.open("/tmp/tranmger_concurrent_test");
+        assertEquals(threads * per, expected.size());
+        for(Map.Entry<Long, Byte> e : expected.entrySet()) {
+            if(e.getValue() == 1) {
+                assertTrue(reopened.isCommitted(e.getKey()));
+            } else {
+                assertTrue(reopened.isAborted(e.getKey()));
+            }
+        }
+        reopened.close();
+        assertTrue(new File("/tmp/tranmger_concurrent_test.xid").delete());
+    }
+
     private void worker() {
         boolean inTrans = false;
         long transXID = 0;
@@ -0,0 +1,295 @@
+package backend.version;
+
+import backend.data.DataManager;
+import backend.transaction.TransactionManager;
+import common.Error;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VersionManagerTest {
+    /**
+     * 统计状态查询次数的 TM
+     */
+    static class CountingTransactionManager implements TransactionManager {
+        final TransactionManager tm;
+        final AtomicInteger lookups = new AtomicInteger();
+
+        CountingTransactionManager(TransactionManager tm) {
+            this.tm = tm;
+        }
+
+        @Override
+        public long begin() {
+            return tm.begin();
+        }
+
+        @Override
+        public void commit(long xid) {
+            tm.commit(xid);
+        }
+
+        @Override
+        public void abort(long xid) {
+            tm.abort(xid);
+        }
+
+        @Override
+        public boolean isActive(long xid) {
+            lookups.incrementAndGet();
+            return tm.isActive(xid);
+        }
+
+        @Override
+        public boolean isCommitted(long xid) {
+            lookups.incrementAndGet();
+            return tm.isCommitted(xid);
+        }
+
+        @Override
+        public boolean isAborted(long xid) {
+            lookups.incrementAndGet();
+            return tm.isAborted(xid);
+        }
+
+        @Override
+        public void abortUnfinished() {
+            tm.abortUnfinished();
+        }
+
+        @Override
+        public void close() {
+            tm.close();
+        }
+    }
+
+    private File dir;
+    private CountingTransactionManager tm;
+    private DataManager dm;
+    private VersionManager vm;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("vm-test").toFile();
+        String path = new File(dir, "db").getPath();
+        tm = new CountingTransactionManager(TransactionManager.create(path));
+        dm = DataManager.create(path, 1 << 22, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+    }
+
+    @After
+    public void tearDown() {
+        dm.close();
+        tm.close();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static void assertReadOnly(Exception e) {
+        assertSame(Error.ReadOnlyTransactionException, e);
+    }
+
+    @Test
+    public void testReadOnlyTransactionRejectsWrites() throws Exception {
+        long w = vm.begin(0);
+        long uid = vm.insert(w, new byte[]{1, 2, 3});
+        vm.commit(w);
+
+        long ro = vm.beginReadOnly(1);
+        assertTrue(ro < 0);
+        assertArrayEquals(new byte[]{1, 2, 3}, vm.read(ro, uid));
+        try {
+            vm.insert(ro, new byte[]{4});
+            fail();
+        } catch(Exception e) {
+            assertReadOnly(e);
+        }
+        try {
+            vm.insertBatch(ro, Collections.singletonList(new byte[]{5}));
+            fail();
+        } catch(Exception e) {
+            assertReadOnly(e);
+        }
+        try {
+            vm.delete(ro, uid);
+            fail();
+        } catch(Exception e) {
+            assertReadOnly(e);
+        }
+        vm.commit(ro);
+
+        // 只读事务不向 TM 申请 XID，也没有删掉数据
+        long next = vm.begin(0);
+        assertEquals(w + 1, next);
+        assertArrayEquals(new byte[]{1, 2, 3}, vm.read(next, uid));
+        vm.commit(next);
+    }
+
+    private int countVisible(long xid, long[] uids) throws Exception {
+        int seen = 0;
+        for(long uid : uids) {
+            if(vm.read(xid, uid) != null) {
+                seen ++;
+            }
+        }
+        return seen;
+    }
+
+    @Test
+    public void testHintBitsSkipStatusLookups() throws Exception {
+        long w = vm.begin(0);
+        long[] uids = new long[100];
+        for(int i = 0; i < uids.length; i ++) {
+            uids[i] = vm.insert(w, new byte[]{(byte)i});
+        }
+        vm.commit(w);
+        // 回滚的删除在 XMAX 上留下已回滚的事务
+        long aborted = vm.begin(0);
+        for(int i = 0; i < 50; i ++) {
+            assertTrue(vm.delete(aborted, uids[i]));
+        }
+        vm.abort(aborted);
+        long deleter = vm.begin(0);
+        for(int i = 0; i < 10; i ++) {
+            assertTrue(vm.delete(deleter, uids[i]));
+        }
+        vm.commit(deleter);
+
+        for(int level = 0; level <= 1; level ++) {
+            long r = vm.beginReadOnly(level);
+            // 第一次读取查询 TM 并设置提示位
+            tm.lookups.set(0);
+            assertEquals(90, countVisible(r, uids));
+            if(level == 0) {
+                assertTrue(tm.lookups.get() > 0);
+            }
+            tm.lookups.set(0);
+            assertEquals(90, countVisible(r, uids));
+            assertEquals(0, tm.lookups.get());
+            vm.commit(r);
+        }
+
+        // 提示位写进了页面，新的读写事务也不需要查询
+        long t = vm.begin(1);
+        tm.lookups.set(0);
+        assertEquals(90, countVisible(t, uids));
+        assertEquals(0, tm.lookups.get());
+        vm.commit(t);
+    }
+
+    @Test
+    public void testPurgeKeepsVersionsForUnregisteredSnapshot() throws Exception {
+        VersionManagerImpl vmi = (VersionManagerImpl)vm;
+        long w = vm.begin(0);
+        long uid = vm.insert(w, new byte[]{1});
+        vm.commit(w);
+
+        long deleter = vm.begin(0);
+        assertTrue(vm.delete(deleter, uid));
+        // begin() 取了快照，还没有放进 activeTransaction：快照中 deleter 正在进行，仍然能看到这条记录
+        ActiveSet.State s = vmi.active.begin(tm);
+        vm.commit(deleter);
+        long other = vm.begin(0);
+        vm.commit(other);
+        assertNotNull(dm.read(uid));
+
+        vmi.active.remove(s.lastXid);
+        tm.abort(s.lastXid);
+    }
+
+    @Test
+    public void testRepeatableReadWithConcurrentWriters() throws Exception {
+        int writers = 4, readers = 2;
+        List<Long> uids = new CopyOnWriteArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<List<Long>> owned = new ArrayList<>();
+        long init = vm.begin(0);
+        for(int w = 0; w < writers; w ++) {
+            List<Long> mine = new ArrayList<>();
+            for(int i = 0; i < 50; i ++) {
+                long uid = vm.insert(init, new byte[]{(byte)w, (byte)i});
+                mine.add(uid);
+                uids.add(uid);
+            }
+            owned.add(mine);
+        }
+        vm.commit(init);
+
+        List<Thread> threads = new ArrayList<>();
+        for(int w = 0; w < writers; w ++) {
+            // 每个写者只删除自己插入的记录，写者之间没有冲突
+            List<Long> mine = owned.get(w);
+            Random random = new Random(w);
+            threads.add(new Thread(() -> {
+                try {
+                    for(int i = 0; i < 100; i ++) {
+                        long xid = vm.begin(i % 2);
+                        long victim = mine.remove(random.nextInt(mine.size()));
+                        assertTrue(vm.delete(xid, victim));
+                        long uid = vm.insert(xid, new byte[]{(byte)i});
+                        // 提交之前公开 UID，读者拿到列表之后才出现的 UID 一定在它开始之后才提交
+                        uids.add(uid);
+                        vm.commit(xid);
+                        mine.add(uid);
+                    }
+                } catch(Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for(int r = 0; r < readers; r ++) {
+            boolean readOnly = r == 0;
+            threads.add(new Thread(() -> {
+                try {
+                    for(int round = 0; round < 30; round ++) {
+                        long xid = readOnly ? vm.beginReadOnly(1) : vm.begin(1);
+                        List<Long> known = new ArrayList<>(uids);
+                        Map<Long, byte[]> view = new HashMap<>();
+                        for(long uid : known) {
+                            view.put(uid, vm.read(xid, uid));
+                        }
+                        // 写者提交的删除和插入，以及之后的 purge，都不能改变已经看到的内容
+                        for(int again = 0; again < 2; again ++) {
+                            for(long uid : known) {
+                                assertArrayEquals(view.get(uid), vm.read(xid, uid));
+                            }
+                        }
+                        for(long uid : new ArrayList<>(uids.subList(known.size(), uids.size()))) {
+                            assertEquals(null, vm.read(xid, uid));
+                        }
+                        vm.commit(xid);
+                    }
+                } catch(Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for(Thread t : threads) {
+            t.start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+}